@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Finds the lines of a script that allocate the most, for --allocations or
+// --allocations=N. A heap dump only shows anonymous instances, environments
+// and maps, so this counts them where they're made instead: about one in N
+// objects of the kinds below is charged to the function and line at the
+// top of the ShadowStack, as if all N had been made there.
+//
+// The gap between samples is random, drawn from a geometric distribution
+// with a mean of N. With a fixed stride a loop that allocates N objects per
+// iteration would be charged to the same one every time.
+//
+// Sizes are estimates for a 64-bit JVM with compressed pointers, including
+// the HashMap each instance and environment carries while it's empty.
+// Strings are assumed to hold one byte per character. What matters is how
+// the sites compare, not the last byte.
+class AllocationTracker {
+  enum Kind {
+    INSTANCE("instance", 72),
+    ENVIRONMENT("environment", 72),
+    BOUND_METHOD("bound method", 32),
+    STRING("string", 40);
+
+    final String label;
+    // Before any characters, for strings.
+    final int bytes;
+
+    Kind(String label, int bytes) {
+      this.label = label;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class Site {
+    final String function;
+    final int line;
+    final Kind kind;
+    long count = 0;
+    long bytes = 0;
+
+    Site(String function, int line, Kind kind) {
+      this.function = function;
+      this.line = line;
+      this.kind = kind;
+    }
+  }
+
+  static final int DEFAULT_INTERVAL = 100;
+
+  // Null unless --allocations is on, so each hook costs one field check.
+  static AllocationTracker active = null;
+
+  private final ShadowStack frames;
+  private final int interval;
+  // Allocations left until the next sample.
+  private int countdown;
+  private final Map<String, Site> sites = new HashMap<>();
+  private final Map<Stmt, Integer> lines = new HashMap<>();
+
+  AllocationTracker(ShadowStack frames, int interval) {
+    this.frames = frames;
+    this.interval = interval;
+    this.countdown = gap();
+  }
+
+  // How many allocations until the next sample, one in interval on
+  // average.
+  private int gap() {
+    if (interval == 1) return 1;
+    double uniform = ThreadLocalRandom.current().nextDouble();
+    double gap = Math.log1p(-uniform) / Math.log1p(-1.0 / interval);
+    return (int)Math.min(gap, Integer.MAX_VALUE - 1) + 1;
+  }
+
+  void allocated(Kind kind) {
+    allocated(kind, 0);
+  }
+
+  void allocated(Kind kind, int characters) {
+    if (--countdown > 0) return;
+    countdown = gap();
+
+    int top = frames.depth - 1;
+    Stmt stmt = frames.statements[top];
+    // A call's environment is made before its first statement runs, so
+    // charge it to the line that made the call.
+    if (stmt == null && top > 0) stmt = frames.statements[--top];
+    String function = frames.names[top];
+
+    int line = 0;
+    if (stmt != null) line = lines.computeIfAbsent(stmt, ShadowStack::line);
+
+    String key = function + ":" + line + ":" + kind.ordinal();
+    Site site = sites.get(key);
+    if (site == null) {
+      site = new Site(function, line, kind);
+      sites.put(key, site);
+    }
+
+    site.count += interval;
+    site.bytes += bytes(kind, characters) * interval;
+  }
+
+  // Rounded up to the 8 bytes objects are aligned to.
+  static long bytes(Kind kind, int characters) {
+    return (kind.bytes + characters + 7) & ~7L;
+  }
+
+  // Biggest sites first.
+  void print(PrintStream out) {
+    List<Site> sorted = new ArrayList<>(sites.values());
+    sorted.sort(Comparator.comparingLong((Site s) -> s.bytes).reversed()
+        .thenComparing(s -> s.function)
+        .thenComparingInt(s -> s.line));
+
+    out.printf(Locale.ROOT, "Allocations, sampled 1 in %d:%n", interval);
+    out.printf(Locale.ROOT, "%-20s %6s %-14s %12s %12s%n",
+        "function", "line", "kind", "count", "bytes");
+    for (Site s : sorted) {
+      out.printf(Locale.ROOT, "%-20s %6d %-14s %12d %12d%n",
+          s.function, s.line, s.kind.label, s.count, s.bytes);
+    }
+  }
+}
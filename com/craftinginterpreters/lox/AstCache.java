@@ -0,0 +1,624 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads and writes the resolved AST of a script as a compact binary .loxc
+// file, so repeated runs of an unchanged script can skip scanning, parsing
+// and resolving. The file starts with a SHA-256 of the source it was built
+// from and the flags saying how it was optimized, and is ignored unless both
+// match this run.
+//
+// Layout after the header: a string table (every lexeme and string literal
+// once), then the statements as a pre-order walk. Each node is a tag byte
+// followed by its fields. Tokens are type, lexeme index and source offset.
+// Variable, Assign, This and Super also carry the depth the Resolver gave
+// them.
+class AstCache {
+  private static final int MAGIC = 0x4c4f5843; // "LOXC"
+  private static final int VERSION = 8;
+
+  // How the cached tree was optimized.
+  private static final int OPTIMIZED = 1;
+  private static final int INLINED = 2;
+
+  // Node tags. NIL stands in for absent optional children.
+  private static final int NIL = 0;
+  private static final int ASSIGN = 1;
+  private static final int BINARY = 2;
+  private static final int CALL = 3;
+  private static final int GET = 4;
+  private static final int GROUPING = 5;
+  private static final int LITERAL = 6;
+  private static final int LOGICAL = 7;
+  private static final int SET = 8;
+  private static final int SUPER = 9;
+  private static final int THIS = 10;
+  private static final int UNARY = 11;
+  private static final int VARIABLE = 12;
+  private static final int BLOCK = 13;
+  private static final int CLASS = 14;
+  private static final int EXPRESSION = 15;
+  private static final int FUNCTION = 16;
+  private static final int IF = 17;
+  private static final int PRINT = 18;
+  private static final int RETURN = 19;
+  private static final int VAR = 20;
+  private static final int WHILE = 21;
+  private static final int HOISTED = 22;
+  private static final int HOIST = 23;
+  private static final int ARITHMETIC = 24;
+  private static final int NEGATE = 25;
+  private static final int CONST = 26;
+
+  // Literal value tags.
+  private static final int LITERAL_NIL = 0;
+  private static final int LITERAL_FALSE = 1;
+  private static final int LITERAL_TRUE = 2;
+  private static final int LITERAL_NUMBER = 3;
+  private static final int LITERAL_STRING = 4;
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+  // foo.lox is cached in foo.loxc next to it.
+  static Path pathFor(Path script) {
+    String name = script.getFileName().toString();
+    if (name.endsWith(".lox")) return script.resolveSibling(name + "c");
+    return script.resolveSibling(name + ".loxc");
+  }
+
+  static byte[] hash(byte[] source) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(source);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Inlining only happens in optimized trees.
+  static int flags(boolean optimized, boolean inlined) {
+    if (!optimized) return 0;
+    return inlined ? OPTIMIZED | INLINED : OPTIMIZED;
+  }
+
+  // Returns the cached statements and registers their resolved depths with
+  // the interpreter, or null if there is no usable cache for this source.
+  static List<Stmt> load(Path file, byte[] hash, int flags, Source source,
+                         Interpreter interpreter) {
+    if (!Files.isRegularFile(file)) return null;
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+      byte[] stored = new byte[hash.length];
+      in.readFully(stored);
+      if (!Arrays.equals(stored, hash)) return null;
+      if (in.readInt() != flags) return null;
+
+      return new Reader(in, source, interpreter).readProgram();
+    } catch (IOException | RuntimeException error) {
+      // A truncated or corrupt cache is just a miss.
+      return null;
+    }
+  }
+
+  // Writes through a temporary file and renames it into place, so concurrent
+  // runs of the same script never see a half-written cache.
+  static void store(Path file, byte[] hash, int flags,
+                    List<Stmt> statements,
+                    Interpreter interpreter) throws IOException {
+    Path temp = Files.createTempFile(
+        file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(hash);
+        out.writeInt(flags);
+        new Writer(interpreter).writeProgram(statements, out);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Interpreter interpreter;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> table = new ArrayList<>();
+    private DataOutputStream out;
+
+    Writer(Interpreter interpreter) {
+      this.interpreter = interpreter;
+    }
+
+    void writeProgram(List<Stmt> statements, DataOutputStream out)
+        throws IOException {
+      // Nodes go to a buffer first since the string table has to come before them.
+      ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+      this.out = new DataOutputStream(nodes);
+      try {
+        writeStmts(statements);
+      } catch (UncheckedIO error) {
+        throw error.cause;
+      }
+      this.out.flush();
+
+      writeInt(out, table.size());
+      for (String string : table) {
+        // Not writeUTF, which can't hold string literals over 64K.
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes);
+      }
+      nodes.writeTo(out);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      tag(ASSIGN);
+      token(expr.name);
+      depth(expr);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitArithmeticExpr(Expr.Arithmetic expr) {
+      tag(ARITHMETIC);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      tag(BINARY);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      tag(CALL);
+      expr(expr.callee);
+      token(expr.paren);
+      number(expr.arguments.size());
+      for (Expr argument : expr.arguments) expr(argument);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      tag(GET);
+      expr(expr.object);
+      token(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      tag(GROUPING);
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistedExpr(Expr.Hoisted expr) {
+      tag(HOISTED);
+      expr(expr.temp);
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      tag(LITERAL);
+      literal(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      tag(LOGICAL);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      tag(SET);
+      expr(expr.object);
+      token(expr.name);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      tag(SUPER);
+      token(expr.keyword);
+      token(expr.method);
+      depth(expr);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      tag(THIS);
+      token(expr.keyword);
+      depth(expr);
+      return null;
+    }
+
+    @Override
+    public Void visitNegateExpr(Expr.Negate expr) {
+      tag(NEGATE);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      tag(UNARY);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      tag(VARIABLE);
+      token(expr.name);
+      depth(expr);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      tag(BLOCK);
+      writeStmts(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      tag(CLASS);
+      token(stmt.name);
+      expr(stmt.superclass);
+      number(stmt.methods.size());
+      for (Stmt.Function method : stmt.methods) stmt(method);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      tag(EXPRESSION);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      tag(FUNCTION);
+      token(stmt.name);
+      number(stmt.params.size());
+      for (Token param : stmt.params) token(param);
+      writeStmts(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistStmt(Stmt.Hoist stmt) {
+      tag(HOIST);
+      token(stmt.name);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      tag(IF);
+      token(stmt.keyword);
+      expr(stmt.condition);
+      stmt(stmt.thenBranch);
+      stmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      tag(PRINT);
+      token(stmt.keyword);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      tag(RETURN);
+      token(stmt.keyword);
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      tag(stmt.isConst ? CONST : VAR);
+      token(stmt.name);
+      expr(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      tag(WHILE);
+      token(stmt.keyword);
+      expr(stmt.condition);
+      stmt(stmt.body);
+      return null;
+    }
+
+    private void writeStmts(List<Stmt> statements) {
+      number(statements.size());
+      for (Stmt statement : statements) stmt(statement);
+    }
+
+    private void stmt(Stmt stmt) {
+      if (stmt == null) {
+        tag(NIL);
+      } else {
+        stmt.accept(this);
+      }
+    }
+
+    private void expr(Expr expr) {
+      if (expr == null) {
+        tag(NIL);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    private void token(Token token) {
+      tag(token.type.ordinal());
+      number(string(token.lexeme));
+      number(token.offset);
+    }
+
+    // Zero for globals, otherwise the resolved depth plus one.
+    private void depth(Expr expr) {
+      Integer depth = interpreter.localDepth(expr);
+      number(depth == null ? 0 : depth + 1);
+    }
+
+    private void literal(Object value) {
+      try {
+        if (value == null) {
+          out.writeByte(LITERAL_NIL);
+        } else if (value instanceof Boolean) {
+          out.writeByte((Boolean)value ? LITERAL_TRUE : LITERAL_FALSE);
+        } else if (value instanceof Double) {
+          out.writeByte(LITERAL_NUMBER);
+          out.writeDouble((Double)value);
+        } else {
+          out.writeByte(LITERAL_STRING);
+          number(string((String)value));
+        }
+      } catch (IOException error) {
+        throw new UncheckedIO(error);
+      }
+    }
+
+    private int string(String string) {
+      Integer index = strings.get(string);
+      if (index == null) {
+        index = table.size();
+        strings.put(string, index);
+        table.add(string);
+      }
+      return index;
+    }
+
+    private void tag(int tag) {
+      try {
+        out.writeByte(tag);
+      } catch (IOException error) {
+        throw new UncheckedIO(error);
+      }
+    }
+
+    private void number(int value) {
+      try {
+        writeInt(out, value);
+      } catch (IOException error) {
+        throw new UncheckedIO(error);
+      }
+    }
+  }
+
+  private static class Reader {
+    private final DataInputStream in;
+    private final Source source;
+    private final Interpreter interpreter;
+    private String[] strings;
+
+    Reader(DataInputStream in, Source source, Interpreter interpreter) {
+      this.in = in;
+      this.source = source;
+      this.interpreter = interpreter;
+    }
+
+    List<Stmt> readProgram() throws IOException {
+      strings = new String[readInt(in)];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[readInt(in)];
+        in.readFully(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return stmts();
+    }
+
+    private List<Stmt> stmts() throws IOException {
+      int count = readInt(in);
+      List<Stmt> statements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) statements.add(stmt());
+      return statements;
+    }
+
+    private Stmt stmt() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case NIL: return null;
+        case BLOCK: return new Stmt.Block(stmts());
+        case CLASS: {
+          Token name = token();
+          Expr.Variable superclass = (Expr.Variable)expr();
+          int count = readInt(in);
+          List<Stmt.Function> methods = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) methods.add((Stmt.Function)stmt());
+          return new Stmt.Class(name, superclass, methods);
+        }
+        case EXPRESSION: return new Stmt.Expression(expr());
+        case FUNCTION: {
+          Token name = token();
+          int count = readInt(in);
+          List<Token> params = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) params.add(token());
+          return new Stmt.Function(name, params, stmts());
+        }
+        case HOIST: return new Stmt.Hoist(token(), expr());
+        case IF: return new Stmt.If(token(), expr(), stmt(), stmt());
+        case PRINT: return new Stmt.Print(token(), expr());
+        case RETURN: return new Stmt.Return(token(), expr());
+        case VAR: return new Stmt.Var(token(), expr(), false);
+        case CONST: return new Stmt.Var(token(), expr(), true);
+        case WHILE: return new Stmt.While(token(), expr(), stmt());
+      }
+
+      throw new IOException("Bad statement tag " + tag + ".");
+    }
+
+    private Expr expr() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case NIL: return null;
+        case ASSIGN: {
+          Token name = token();
+          int depth = readInt(in);
+          return resolved(new Expr.Assign(name, expr()), depth);
+        }
+        case ARITHMETIC: return new Expr.Arithmetic(expr(), token(), expr());
+        case BINARY: return new Expr.Binary(expr(), token(), expr());
+        case CALL: {
+          Expr callee = expr();
+          Token paren = token();
+          int count = readInt(in);
+          List<Expr> arguments = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) arguments.add(expr());
+          return new Expr.Call(callee, paren, arguments);
+        }
+        case GET: return new Expr.Get(expr(), token());
+        case GROUPING: return new Expr.Grouping(expr());
+        case HOISTED:
+          return new Expr.Hoisted((Expr.Variable)expr(), expr());
+        case LITERAL: return new Expr.Literal(literal());
+        case LOGICAL: return new Expr.Logical(expr(), token(), expr());
+        case SET: return new Expr.Set(expr(), token(), expr());
+        case SUPER: {
+          Expr.Super expr = new Expr.Super(token(), token());
+          return resolved(expr, readInt(in));
+        }
+        case THIS: return resolved(new Expr.This(token()), readInt(in));
+        case NEGATE: return new Expr.Negate(token(), expr());
+        case UNARY: return new Expr.Unary(token(), expr());
+        case VARIABLE: return resolved(new Expr.Variable(token()), readInt(in));
+      }
+
+      throw new IOException("Bad expression tag " + tag + ".");
+    }
+
+    private Expr resolved(Expr expr, int depth) {
+      if (depth > 0) interpreter.resolve(expr, depth - 1);
+      return expr;
+    }
+
+    private Token token() throws IOException {
+      TokenType type = TOKEN_TYPES[in.readUnsignedByte()];
+      String lexeme = strings[readInt(in)];
+      int offset = readInt(in);
+
+      // Token literals are only read by the parser, which has already run.
+      return new Token(type, lexeme, null, source, offset);
+    }
+
+    private Object literal() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case LITERAL_NIL: return null;
+        case LITERAL_FALSE: return false;
+        case LITERAL_TRUE: return true;
+        case LITERAL_NUMBER: return in.readDouble();
+        case LITERAL_STRING: return strings[readInt(in)];
+      }
+
+      throw new IOException("Bad literal tag " + tag + ".");
+    }
+  }
+
+  // Variable-length unsigned ints: seven bits per byte, high bit set on all
+  // but the last. Most counts, offsets and indexes fit in one to three bytes.
+  private static void writeInt(DataOutputStream out, int value)
+      throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed number.");
+  }
+
+  // Lets the visitor methods, which can't throw IOException, report one.
+  private static class UncheckedIO extends RuntimeException {
+    final IOException cause;
+
+    UncheckedIO(IOException cause) {
+      super(null, null, false, false);
+      this.cause = cause;
+    }
+  }
+}
@@ -38,6 +38,12 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return str.toString();
   }
 
+  @Override
+  public String visitArithmeticExpr(Expr.Arithmetic expr) {
+    return parenthesize(expr.operator.lexeme,
+                        expr.left, expr.right);
+  }
+
   @Override
   public String visitBinaryExpr(Expr.Binary expr) {
     return parenthesize(expr.operator.lexeme,
@@ -49,12 +55,22 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return parenthesize("group", expr.expression);
   }
 
+  @Override
+  public String visitHoistedExpr(Expr.Hoisted expr) {
+    return expr.expression.accept(this);
+  }
+
   @Override
   public String visitLiteralExpr(Expr.Literal expr) {
     if (expr.value == null) return "nil";
     return expr.value.toString();
   }
 
+  @Override
+  public String visitNegateExpr(Expr.Negate expr) {
+    return parenthesize(expr.operator.lexeme, expr.right);
+  }
+
   @Override
   public String visitUnaryExpr(Expr.Unary expr) {
     return parenthesize(expr.operator.lexeme, expr.right);
@@ -142,6 +158,11 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return str.toString();
   }
 
+  @Override
+  public String visitHoistStmt(Stmt.Hoist stmt) {
+    return "HOIST";
+  }
+
   @Override
   public String visitIfStmt(Stmt.If stmt) {
     return "IF";
@@ -0,0 +1,197 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Benchmarks a script without JMH:
+//   jlox bench <script> [--warmup N] [--iterations M] [--format json|csv]
+// The script is compiled once, the same way jlox runs it, then interpreted
+// over and over, each time starting from empty globals. Warm-up runs let
+// the JIT settle and aren't counted. The report is one JSON object, or a
+// CSV header and row, so results from two releases can be diffed.
+//
+// Whatever the script prints is thrown away while it's being timed.
+class Bench {
+  private static final PrintStream discard =
+      new PrintStream(OutputStream.nullOutputStream());
+
+  private final String script;
+  private int warmup = 5;
+  private int iterations = 20;
+  private boolean csv = false;
+
+  private Bench(String script) {
+    this.script = script;
+  }
+
+  static void main(String[] args) throws IOException {
+    if (args.length == 0) usage();
+
+    Bench bench = new Bench(args[0]);
+    for (int i = 1; i < args.length; i++) {
+      String option = args[i];
+      if (i + 1 == args.length) usage();
+      String value = args[++i];
+
+      if (option.equals("--warmup")) {
+        bench.warmup = count(value, 0);
+      } else if (option.equals("--iterations")) {
+        bench.iterations = count(value, 1);
+      } else if (option.equals("--format") &&
+          (value.equals("json") || value.equals("csv"))) {
+        bench.csv = value.equals("csv");
+      } else {
+        usage();
+      }
+    }
+
+    bench.run();
+  }
+
+  private static int count(String value, int least) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count >= least) return count;
+    } catch (NumberFormatException error) {
+      // Reported below.
+    }
+    usage();
+    return least;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox bench <script> [--warmup N] [--iterations M] [--format json|csv]");
+    System.exit(64);
+  }
+
+  private void run() throws IOException {
+    byte[] bytes = Files.readAllBytes(Paths.get(script));
+    Source source = new Source(new String(bytes, Charset.defaultCharset()));
+    List<Stmt> statements = Lox.compile(source, false, true);
+    if (statements == null) System.exit(65);
+
+    Interpreter interpreter = Lox.interpreter;
+    for (int i = 0; i < warmup; i++) runOnce(interpreter, statements);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long allocatedBefore = allocatedBytes(threads);
+    long gcBefore = gcMillis();
+
+    long[] times = new long[iterations];
+    for (int i = 0; i < iterations; i++) {
+      times[i] = runOnce(interpreter, statements);
+    }
+
+    long allocated = allocatedBytes(threads);
+    // Unknown when the JVM can't count allocations.
+    if (allocated != -1) allocated = (allocated - allocatedBefore) / iterations;
+    long gc = gcMillis() - gcBefore;
+
+    report(times, allocated, gc);
+  }
+
+  // Returns how long one run took in nanoseconds.
+  private static long runOnce(Interpreter interpreter,
+                              List<Stmt> statements) {
+    interpreter.resetGlobals();
+
+    PrintStream out = System.out;
+    System.setOut(discard);
+    long start = System.nanoTime();
+    try {
+      interpreter.interpret(statements);
+    } finally {
+      System.setOut(out);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    // The error has been reported. Timing a failing run is meaningless.
+    if (Lox.hadRuntimeError) System.exit(70);
+    return elapsed;
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+
+    com.sun.management.ThreadMXBean counting =
+        (com.sun.management.ThreadMXBean)threads;
+    if (!counting.isThreadAllocatedMemorySupported() ||
+        !counting.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  // Collectors report -1 for a time they don't keep.
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean collector :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, collector.getCollectionTime());
+    }
+    return total;
+  }
+
+  private void report(long[] times, long allocated, long gc) {
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+
+    double mean = 0;
+    for (long time : times) mean += time;
+    mean /= times.length;
+
+    double variance = 0;
+    for (long time : times) variance += (time - mean) * (time - mean);
+    double deviation = Math.sqrt(variance / times.length);
+
+    int middle = sorted.length / 2;
+    double median = sorted.length % 2 == 1 ? sorted[middle]
+        : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    // Nearest rank.
+    long p99 = sorted[(int)Math.ceil(0.99 * sorted.length) - 1];
+
+    String[] names = {
+      "script", "warmup", "iterations", "mean_ms", "median_ms", "p99_ms",
+      "stddev_ms", "min_ms", "max_ms", "allocated_bytes_per_iteration",
+      "gc_ms"
+    };
+    String[] values = {
+      quote(script), String.valueOf(warmup), String.valueOf(iterations),
+      millis(mean), millis(median), millis(p99), millis(deviation),
+      millis(sorted[0]), millis(sorted[sorted.length - 1]),
+      String.valueOf(allocated), String.valueOf(gc)
+    };
+
+    if (csv) {
+      System.out.println(String.join(",", names));
+      System.out.println(String.join(",", values));
+      return;
+    }
+
+    StringBuilder json = new StringBuilder("{");
+    for (int i = 0; i < names.length; i++) {
+      if (i > 0) json.append(", ");
+      json.append('"').append(names[i]).append("\": ").append(values[i]);
+    }
+    System.out.println(json.append("}"));
+  }
+
+  private static String millis(double nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private String quote(String text) {
+    if (csv) return '"' + text.replace("\"", "\"\"") + '"';
+    return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+}
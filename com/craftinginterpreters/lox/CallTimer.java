@@ -0,0 +1,94 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Times every call to a Lox function or class, for --timings. Each one gets
+// a call count, a histogram of how long single calls took, and two totals:
+//
+// * Total time is counted once per outermost call, so a recursive function
+//   isn't charged again for every level of itself.
+// * Self time leaves out the time spent in the calls it made, whichever
+//   function those were to.
+//
+// The table is printed at exit, and by the timings() native whenever the
+// script wants it.
+class CallTimer {
+  static class Stats {
+    final String name;
+    final LatencyHistogram latency = new LatencyHistogram();
+    long total = 0;
+    long self = 0;
+    // Calls to this function on the stack right now.
+    int active = 0;
+
+    Stats(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Map<Object, Stats> stats = new ConcurrentHashMap<>();
+
+  // The calls in progress, innermost last, with when each started and how
+  // long the calls it made took.
+  private Stats[] stack = new Stats[64];
+  private long[] starts = new long[64];
+  private long[] children = new long[64];
+  private int depth = 0;
+
+  // The callee is a function declaration or a class, and name is what the
+  // table calls it.
+  void enter(Object callee, String name) {
+    Stats called = stats.get(callee);
+    if (called == null) {
+      called = new Stats(name);
+      stats.put(callee, called);
+    }
+
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+      starts = Arrays.copyOf(starts, depth * 2);
+      children = Arrays.copyOf(children, depth * 2);
+    }
+    stack[depth] = called;
+    children[depth] = 0;
+    called.active++;
+    starts[depth++] = System.nanoTime();
+  }
+
+  void exit() {
+    long elapsed = System.nanoTime() - starts[--depth];
+    Stats called = stack[depth];
+    stack[depth] = null;
+
+    called.latency.record(elapsed);
+    called.self += elapsed - children[depth];
+    if (--called.active == 0) called.total += elapsed;
+    if (depth > 0) children[depth - 1] += elapsed;
+  }
+
+  // Slowest in total first.
+  void print(PrintStream out) {
+    List<Stats> sorted = new ArrayList<>(stats.values());
+    sorted.sort(Comparator.comparingLong((Stats s) -> s.total).reversed()
+        .thenComparing(s -> s.name));
+
+    out.printf(Locale.ROOT, "%-20s %10s %12s %12s %10s %10s %10s %10s%n",
+        "function", "calls", "total ms", "self ms", "mean us", "p50 us",
+        "p99 us", "max us");
+    for (Stats s : sorted) {
+      LatencyHistogram latency = s.latency;
+      out.printf(Locale.ROOT,
+          "%-20s %10d %12.3f %12.3f %10.1f %10.1f %10.1f %10.1f%n",
+          s.name, latency.count(), s.total / 1e6, s.self / 1e6,
+          latency.mean() / 1e3, latency.percentile(0.5) / 1e3,
+          latency.percentile(0.99) / 1e3, latency.max() / 1e3);
+    }
+  }
+}
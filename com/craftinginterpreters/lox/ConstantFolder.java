@@ -0,0 +1,183 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Evaluates what can be evaluated before the program runs: operators on
+// literal operands, reads of locals that are initialized with a literal and
+// never assigned, reads of global constants with a literal value, and ifs and
+// whiles whose condition is a literal.
+//
+// Anything that would fail at runtime, like "a" - 1, is left alone so the
+// error is still raised by the interpreter at the same token.
+class ConstantFolder extends Transformer {
+  // The value of each local found to be constant so far.
+  private final Map<Resolver.Binding, Object> constants = new HashMap<>();
+  // The same for global constants, which only applies to code after the
+  // declaration since earlier code may run before it.
+  private final Map<String, Object> globalConstants = new HashMap<>();
+
+  ConstantFolder(Interpreter interpreter, Resolver resolver) {
+    super(interpreter, resolver);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr folded = super.visitBinaryExpr(expr);
+    if (!(folded instanceof Expr.Binary)) return folded;
+
+    Expr.Binary binary = (Expr.Binary)folded;
+    if (!(binary.left instanceof Expr.Literal) ||
+        !(binary.right instanceof Expr.Literal)) {
+      return binary;
+    }
+
+    Object left = ((Expr.Literal)binary.left).value;
+    Object right = ((Expr.Literal)binary.right).value;
+
+    switch (binary.operator.type) {
+      case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(left, right));
+      case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(left, right));
+      case PLUS:
+        if (left instanceof String && right instanceof String) {
+          return new Expr.Literal((String)left + (String)right);
+        }
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double)) return binary;
+    double a = (double)left;
+    double b = (double)right;
+
+    switch (binary.operator.type) {
+      case GREATER: return new Expr.Literal(a > b);
+      case GREATER_EQUAL: return new Expr.Literal(a >= b);
+      case LESS: return new Expr.Literal(a < b);
+      case LESS_EQUAL: return new Expr.Literal(a <= b);
+      case MINUS: return new Expr.Literal(a - b);
+      case PLUS: return new Expr.Literal(a + b);
+      case SLASH: return new Expr.Literal(a / b);
+      case STAR: return new Expr.Literal(a * b);
+    }
+
+    return binary;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr folded = super.visitGroupingExpr(expr);
+    if (folded instanceof Expr.Grouping &&
+        ((Expr.Grouping)folded).expression instanceof Expr.Literal) {
+      return ((Expr.Grouping)folded).expression;
+    }
+    return folded;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr folded = super.visitLogicalExpr(expr);
+    if (!(folded instanceof Expr.Logical)) return folded;
+
+    Expr.Logical logical = (Expr.Logical)folded;
+    if (!(logical.left instanceof Expr.Literal)) return logical;
+
+    // Like the interpreter: 'or' stops at a truthy left operand and 'and'
+    // at a falsey one, otherwise the result is the right operand.
+    boolean truthy = Interpreter.isTruthy(((Expr.Literal)logical.left).value);
+    if (logical.operator.type == TokenType.OR ? truthy : !truthy) {
+      return logical.left;
+    }
+    return logical.right;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr folded = super.visitUnaryExpr(expr);
+    if (!(folded instanceof Expr.Unary)) return folded;
+
+    Expr.Unary unary = (Expr.Unary)folded;
+    if (!(unary.right instanceof Expr.Literal)) return unary;
+
+    Object right = ((Expr.Literal)unary.right).value;
+    switch (unary.operator.type) {
+      case BANG:
+        return new Expr.Literal(!Interpreter.isTruthy(right));
+      case MINUS:
+        if (right instanceof Double) return new Expr.Literal(-(double)right);
+        break;
+    }
+
+    return unary;
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    Resolver.Binding binding = resolver.binding(expr);
+    if (binding == null) {
+      String name = expr.name.lexeme;
+      if (interpreter.localDepth(expr) != null ||
+          !globalConstants.containsKey(name)) {
+        return expr;
+      }
+      return new Expr.Literal(globalConstants.get(name));
+    }
+
+    if (!constants.containsKey(binding)) return expr;
+
+    // The read is gone, which later passes need to know.
+    binding.reads--;
+    return new Expr.Literal(constants.get(binding));
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = transform(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+        return transform(stmt.thenBranch);
+      }
+      return transform(stmt.elseBranch);
+    }
+
+    Stmt thenBranch = transformBody(stmt.thenBranch);
+    Stmt elseBranch = transform(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(stmt.keyword, condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Stmt folded = super.visitVarStmt(stmt);
+
+    // Other globals can be redefined or read before they're declared, so
+    // only locals and global constants are propagated.
+    Resolver.Binding binding = resolver.binding(stmt);
+    Expr initializer = ((Stmt.Var)folded).initializer;
+    if (!(initializer instanceof Expr.Literal)) return folded;
+
+    Object value = ((Expr.Literal)initializer).value;
+    if (binding != null && binding.neverAssigned()) {
+      constants.put(binding, value);
+    } else if (binding == null && stmt.isConst) {
+      globalConstants.put(stmt.name.lexeme, value);
+    }
+
+    return folded;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = transform(stmt.condition);
+    if (condition instanceof Expr.Literal &&
+        !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return null;
+    }
+
+    Stmt body = transformBody(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(stmt.keyword, condition, body);
+  }
+}
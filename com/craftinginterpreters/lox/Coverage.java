@@ -0,0 +1,69 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Statement coverage for --coverage=out.info, cheap enough to leave on. The
+// Resolver numbers each statement it sees, densely from one, and each time
+// the interpreter runs a statement it sets that statement's bit in a long[]:
+// a shift, an or and a store, with no map to look in. At exit the bits
+// become lines, written in the LCOV format genhtml and most CI tools read.
+//
+// A line counts as run if any statement starting on it ran. LCOV wants hit
+// counts, but a bit only says whether, so every line run is counted once.
+class Coverage {
+  // Null unless --coverage is on.
+  static Coverage active = null;
+
+  // By number, less one.
+  private final List<Stmt> statements = new ArrayList<>();
+  private long[] bits = null;
+
+  // Called by the Resolver. Statements resolved again keep their number.
+  synchronized void register(Stmt stmt) {
+    if (bits != null || stmt.coverage != 0) return;
+    statements.add(stmt);
+    stmt.coverage = statements.size();
+  }
+
+  // Numbering stops here, so the bitmap never has to grow while the
+  // interpreter is writing to it.
+  synchronized long[] start() {
+    if (bits == null) bits = new long[statements.size() / 64 + 1];
+    return bits;
+  }
+
+  // Nothing has run if the script never started, as with --check.
+  void write(Path file, Path script) throws IOException {
+    long[] bits = start();
+    Map<Integer, Boolean> lines = new TreeMap<>();
+    for (int i = 0; i < statements.size(); i++) {
+      int line = ShadowStack.line(statements.get(i));
+      if (line == 0) continue;
+      int index = i + 1;
+      boolean run = (bits[index >>> 6] & (1L << index)) != 0;
+      lines.merge(line, run, Boolean::logicalOr);
+    }
+
+    StringBuilder lcov = new StringBuilder();
+    lcov.append("TN:\n");
+    lcov.append("SF:").append(script.toAbsolutePath()).append('\n');
+    int hit = 0;
+    for (Map.Entry<Integer, Boolean> line : lines.entrySet()) {
+      boolean run = line.getValue();
+      if (run) hit++;
+      lcov.append("DA:").append(line.getKey()).append(',')
+          .append(run ? 1 : 0).append('\n');
+    }
+    lcov.append("LF:").append(lines.size()).append('\n');
+    lcov.append("LH:").append(hit).append('\n');
+    lcov.append("end_of_record\n");
+    Files.write(file, lcov.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
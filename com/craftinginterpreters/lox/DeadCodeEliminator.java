@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Removes code whose execution can't be observed:
+//
+// * Statements after one that always returns.
+// * Expression statements that can't fail and have no side effects.
+// * Declarations and assignments of locals that are never read and not
+//   captured by a closure. The assigned value is still evaluated if doing so
+//   could fail or have side effects.
+//
+// Locals are found through the Resolver's bindings, so it relies on earlier
+// passes keeping their read counts up to date.
+class DeadCodeEliminator extends Transformer {
+  DeadCodeEliminator(Interpreter interpreter, Resolver resolver) {
+    super(interpreter, resolver);
+  }
+
+  @Override
+  List<Stmt> transform(List<Stmt> statements) {
+    List<Stmt> transformed = super.transform(statements);
+
+    for (int i = 0; i < transformed.size() - 1; i++) {
+      if (alwaysReturns(transformed.get(i))) {
+        return new ArrayList<>(transformed.subList(0, i + 1));
+      }
+    }
+
+    return transformed;
+  }
+
+  private boolean alwaysReturns(Stmt stmt) {
+    if (stmt instanceof Stmt.Return) return true;
+
+    if (stmt instanceof Stmt.Block) {
+      for (Stmt statement : ((Stmt.Block)stmt).statements) {
+        if (alwaysReturns(statement)) return true;
+      }
+    }
+
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      return ifStmt.elseBranch != null && alwaysReturns(ifStmt.thenBranch) &&
+          alwaysReturns(ifStmt.elseBranch);
+    }
+
+    return false;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = transform(expr.value);
+    // An assignment evaluates to the value, so that's all that's left.
+    if (isDead(resolver.binding(expr))) return value;
+
+    if (value == expr.value) return expr;
+    return replaced(expr, new Expr.Assign(expr.name, value));
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Stmt transformed = super.visitExpressionStmt(stmt);
+    if (isPure(((Stmt.Expression)transformed).expression)) return null;
+    return transformed;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    if (isDead(resolver.binding(stmt))) return null;
+    return super.visitFunctionStmt(stmt);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Stmt transformed = super.visitVarStmt(stmt);
+    if (!isDead(resolver.binding(stmt))) return transformed;
+
+    // Dropping the declaration is safe even if the local is still assigned
+    // somewhere: assignAt stores into the resolved environment regardless.
+    Expr initializer = ((Stmt.Var)transformed).initializer;
+    if (initializer == null || isPure(initializer)) return null;
+    return new Stmt.Expression(initializer);
+  }
+
+  private boolean isDead(Resolver.Binding binding) {
+    return binding != null && binding.neverRead() && !binding.captured;
+  }
+
+  // Whether evaluating the expression can neither fail nor change anything.
+  private boolean isPure(Expr expr) {
+    if (expr instanceof Expr.Literal) return true;
+    if (expr instanceof Expr.This) return true;
+    // Locals are always defined. Globals may not be, and reading one that
+    // isn't is an error.
+    if (expr instanceof Expr.Variable) return resolver.binding(expr) != null;
+
+    if (expr instanceof Expr.Grouping) {
+      return isPure(((Expr.Grouping)expr).expression);
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return isPure(logical.left) && isPure(logical.right);
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      return unary.operator.type == TokenType.BANG && isPure(unary.right);
+    }
+
+    // Of the binary operators only equality accepts any operands.
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      TokenType type = binary.operator.type;
+      return (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) &&
+          isPure(binary.left) && isPure(binary.right);
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A function body the parser skipped over in lazy mode. It remembers where
+// the body's tokens start, and once the Resolver reaches the declaration it
+// also remembers the scopes that were visible there, so the body can be
+// parsed and resolved on its first call exactly as it would have been up front.
+class DeferredBody {
+  final List<Token> tokens;
+  // Index of the first token after the body's '{'.
+  final int start;
+
+  List<Map<String, Resolver.Binding>> scopes;
+  Resolver.FunctionType functionType;
+  Resolver.ClassType classType;
+
+  DeferredBody(List<Token> tokens, int start) {
+    this.tokens = tokens;
+    this.start = start;
+  }
+
+  void capture(List<Map<String, Resolver.Binding>> scopes,
+               Resolver.FunctionType functionType,
+               Resolver.ClassType classType) {
+    // Copy each scope, since names declared after the function in the same
+    // block must stay invisible to it.
+    this.scopes = new ArrayList<>();
+    for (Map<String, Resolver.Binding> scope : scopes) {
+      this.scopes.add(new HashMap<>(scope));
+    }
+    this.functionType = functionType;
+    this.classType = classType;
+  }
+}
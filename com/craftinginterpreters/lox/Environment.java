@@ -12,9 +12,22 @@ class Environment {
   }
 
   Environment(Environment enclosing) {
+    if (OpCount.ENABLED) OpCount.environments++;
+    if (Metrics.active != null) Metrics.active.environments.increment();
+    if (AllocationTracker.active != null) {
+      AllocationTracker.active.allocated(AllocationTracker.Kind.ENVIRONMENT);
+    }
     this.enclosing = enclosing;
   }
 
+  Map<String, Object> values() {
+    return values;
+  }
+
+  void clear() {
+    values.clear();
+  }
+
   Object get(Token name) {
     if (values.containsKey(name.lexeme)) {
       return values.get(name.lexeme);
@@ -2,23 +2,83 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr permits
+    Expr.Arithmetic,
+    Expr.Assign,
+    Expr.Binary,
+    Expr.Call,
+    Expr.Get,
+    Expr.Grouping,
+    Expr.Hoisted,
+    Expr.Literal,
+    Expr.Logical,
+    Expr.Negate,
+    Expr.Set,
+    Expr.Super,
+    Expr.This,
+    Expr.Unary,
+    Expr.Variable {
+  static final int ARITHMETIC = 0;
+  static final int ASSIGN = 1;
+  static final int BINARY = 2;
+  static final int CALL = 3;
+  static final int GET = 4;
+  static final int GROUPING = 5;
+  static final int HOISTED = 6;
+  static final int LITERAL = 7;
+  static final int LOGICAL = 8;
+  static final int NEGATE = 9;
+  static final int SET = 10;
+  static final int SUPER = 11;
+  static final int THIS = 12;
+  static final int UNARY = 13;
+  static final int VARIABLE = 14;
+  static final int KINDS = 15;
+  static final String[] NAMES = {"Arithmetic", "Assign", "Binary", "Call", "Get", "Grouping", "Hoisted", "Literal", "Logical", "Negate", "Set", "Super", "This", "Unary", "Variable"};
+
+  final int kind;
+
+  private Expr(int kind) {
+    this.kind = kind;
+  }
+
   interface Visitor<R> {
+    R visitArithmeticExpr(Arithmetic expr);
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
     R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
+    R visitHoistedExpr(Hoisted expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
+    R visitNegateExpr(Negate expr);
     R visitSetExpr(Set expr);
     R visitSuperExpr(Super expr);
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
   }
-  static class Assign extends Expr {
+  static final class Arithmetic extends Expr {
+    Arithmetic(Expr left, Token operator, Expr right) {
+    super(ARITHMETIC);
+    this.left = left;
+    this.operator = operator;
+    this.right = right;
+    }
+
+  final Expr left;
+  final Token operator;
+  final Expr right;
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArithmeticExpr(this);
+    }
+  }
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
+    super(ASSIGN);
     this.name = name;
     this.value = value;
     }
@@ -31,8 +91,9 @@ abstract class Expr {
       return visitor.visitAssignExpr(this);
     }
   }
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
+    super(BINARY);
     this.left = left;
     this.operator = operator;
     this.right = right;
@@ -47,8 +108,9 @@ abstract class Expr {
       return visitor.visitBinaryExpr(this);
     }
   }
-  static class Call extends Expr {
+  static final class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
+    super(CALL);
     this.callee = callee;
     this.paren = paren;
     this.arguments = arguments;
@@ -63,8 +125,9 @@ abstract class Expr {
       return visitor.visitCallExpr(this);
     }
   }
-  static class Get extends Expr {
+  static final class Get extends Expr {
     Get(Expr object, Token name) {
+    super(GET);
     this.object = object;
     this.name = name;
     }
@@ -77,8 +140,9 @@ abstract class Expr {
       return visitor.visitGetExpr(this);
     }
   }
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
+    super(GROUPING);
     this.expression = expression;
     }
 
@@ -89,8 +153,24 @@ abstract class Expr {
       return visitor.visitGroupingExpr(this);
     }
   }
-  static class Literal extends Expr {
+  static final class Hoisted extends Expr {
+    Hoisted(Expr.Variable temp, Expr expression) {
+    super(HOISTED);
+    this.temp = temp;
+    this.expression = expression;
+    }
+
+  final Expr.Variable temp;
+  final Expr expression;
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitHoistedExpr(this);
+    }
+  }
+  static final class Literal extends Expr {
     Literal(Object value) {
+    super(LITERAL);
     this.value = value;
     }
 
@@ -101,8 +181,9 @@ abstract class Expr {
       return visitor.visitLiteralExpr(this);
     }
   }
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
+    super(LOGICAL);
     this.left = left;
     this.operator = operator;
     this.right = right;
@@ -117,8 +198,24 @@ abstract class Expr {
       return visitor.visitLogicalExpr(this);
     }
   }
-  static class Set extends Expr {
+  static final class Negate extends Expr {
+    Negate(Token operator, Expr right) {
+    super(NEGATE);
+    this.operator = operator;
+    this.right = right;
+    }
+
+  final Token operator;
+  final Expr right;
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitNegateExpr(this);
+    }
+  }
+  static final class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
+    super(SET);
     this.object = object;
     this.name = name;
     this.value = value;
@@ -133,8 +230,9 @@ abstract class Expr {
       return visitor.visitSetExpr(this);
     }
   }
-  static class Super extends Expr {
+  static final class Super extends Expr {
     Super(Token keyword, Token method) {
+    super(SUPER);
     this.keyword = keyword;
     this.method = method;
     }
@@ -147,8 +245,9 @@ abstract class Expr {
       return visitor.visitSuperExpr(this);
     }
   }
-  static class This extends Expr {
+  static final class This extends Expr {
     This(Token keyword) {
+    super(THIS);
     this.keyword = keyword;
     }
 
@@ -159,8 +258,9 @@ abstract class Expr {
       return visitor.visitThisExpr(this);
     }
   }
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
     Unary(Token operator, Expr right) {
+    super(UNARY);
     this.operator = operator;
     this.right = right;
     }
@@ -173,8 +273,9 @@ abstract class Expr {
       return visitor.visitUnaryExpr(this);
     }
   }
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
+    super(VARIABLE);
     this.name = name;
     }
 
@@ -0,0 +1,380 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Walks everything a script can still reach, from the globals and the
+// scopes active right now, through instance fields, closures, classes and
+// the environments they hang on to. Run by the heap() native, which only
+// exists under --heap.
+//
+// It reports, for each class and for each other kind of value, how many
+// there are and how much they retain: the bytes that would be freed if
+// they were gone. That comes from the dominator tree of the graph, built
+// with Cooper, Harvey and Kennedy's iterative algorithm. Then the objects
+// that retain the most are listed with a path that reaches them, which is
+// how a closure holding on to a big environment shows up.
+//
+// Sizes are the same estimates --allocations uses, plus an entry for each
+// variable, field or method in a map.
+class HeapInspector {
+  // A HashMap node and its slot in the table.
+  private static final int ENTRY_BYTES = 36;
+  private static final int NUMBER_BYTES = 16;
+  private static final int LARGEST = 10;
+  // Paths longer than this keep their ends.
+  private static final int PATH_SEGMENTS = 8;
+
+  private static final String[] KINDS = {
+    "(environment)", "(function)", "(class)", "(string)", "(number)"
+  };
+  private static final int ENVIRONMENT = 0;
+  private static final int FUNCTION = 1;
+  private static final int CLASS = 2;
+  private static final int STRING = 3;
+  private static final int NUMBER = 4;
+
+  private final Environment globals;
+
+  // Node zero stands for the roots. Every other node is an object, found
+  // from the one in parents by way of the name in labels.
+  private final List<Object> objects = new ArrayList<>();
+  private final Map<Object, Integer> ids = new IdentityHashMap<>();
+  private final List<Integer> parents = new ArrayList<>();
+  private final List<String> labels = new ArrayList<>();
+  private final List<Integer> groups = new ArrayList<>();
+  private final List<Long> sizes = new ArrayList<>();
+  // Each instance is grouped with the others of its class.
+  private final Map<LoxClass, Integer> classGroups = new IdentityHashMap<>();
+  private final List<String> groupNames = new ArrayList<>(List.of(KINDS));
+
+  // Every reference, as parallel lists of where from and where to.
+  private int[] edgeFrom = new int[256];
+  private int[] edgeTo = new int[256];
+  private int edgeCount = 0;
+
+  HeapInspector(Environment globals) {
+    this.globals = globals;
+  }
+
+  void print(Environment active, PrintStream out) {
+    discover(active);
+
+    int count = objects.size();
+    int[][] successors = adjacency(count, edgeFrom, edgeTo, edgeCount);
+    int[][] predecessors = adjacency(count, edgeTo, edgeFrom, edgeCount);
+
+    int[] order = postorder(successors);
+    int[] dominators = dominators(order, predecessors);
+
+    long[] retained = new long[count];
+    for (int node = 1; node < count; node++) retained[node] = sizes.get(node);
+    // Each node comes before its dominator in postorder.
+    for (int node : order) {
+      if (node != 0) retained[dominators[node]] += retained[node];
+    }
+
+    printGroups(out, count, retained, dominators);
+    printLargest(out, count, retained, dominators);
+  }
+
+  private void discover(Environment active) {
+    add(null, -1, "");
+    for (Map.Entry<String, Object> global : globals.values().entrySet()) {
+      reference(0, global.getKey(), global.getValue());
+    }
+    for (Environment scope = active; scope != null && scope != globals;
+         scope = scope.enclosing) {
+      reference(0, "<active>", scope);
+    }
+
+    // Nodes are numbered in the order they're found, so the ones still to
+    // be looked at are the ones past the cursor.
+    for (int node = 1; node < objects.size(); node++) {
+      Object object = objects.get(node);
+      if (object instanceof Environment) {
+        Environment environment = (Environment)object;
+        for (Map.Entry<String, Object> variable :
+            environment.values().entrySet()) {
+          reference(node, variable.getKey(), variable.getValue());
+        }
+        reference(node, "<enclosing>", environment.enclosing);
+      } else if (object instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance)object;
+        for (Map.Entry<String, Object> field : instance.fields().entrySet()) {
+          reference(node, field.getKey(), field.getValue());
+        }
+        reference(node, "<class>", instance.klass());
+      } else if (object instanceof LoxFunction) {
+        reference(node, "<closure>", ((LoxFunction)object).closure());
+      } else if (object instanceof LoxClass) {
+        LoxClass klass = (LoxClass)object;
+        for (Map.Entry<String, LoxFunction> method :
+            klass.methods().entrySet()) {
+          reference(node, method.getKey(), method.getValue());
+        }
+        reference(node, "<superclass>", klass.superclass);
+      }
+    }
+  }
+
+  // Adds an edge to the value if it's something that takes up room. The
+  // globals are the roots already, and natives are left out.
+  private void reference(int from, String label, Object value) {
+    if (value == null || value == globals) return;
+    if (value instanceof Boolean) return;
+    if (value instanceof LoxCallable && !(value instanceof LoxFunction) &&
+        !(value instanceof LoxClass)) {
+      return;
+    }
+
+    Integer to = ids.get(value);
+    if (to == null) to = add(value, from, label);
+
+    if (edgeCount == edgeFrom.length) {
+      edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+      edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+    }
+    edgeFrom[edgeCount] = from;
+    edgeTo[edgeCount++] = to;
+  }
+
+  private int add(Object object, int parent, String label) {
+    int id = objects.size();
+    objects.add(object);
+    if (object != null) ids.put(object, id);
+    parents.add(parent);
+    labels.add(label);
+
+    int group = -1;
+    long size = 0;
+    if (object instanceof Environment) {
+      group = ENVIRONMENT;
+      size = AllocationTracker.Kind.ENVIRONMENT.bytes +
+          (long)ENTRY_BYTES * ((Environment)object).values().size();
+    } else if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance)object;
+      group = classGroups.computeIfAbsent(instance.klass(), klass -> {
+        groupNames.add(klass.name);
+        return groupNames.size() - 1;
+      });
+      size = AllocationTracker.Kind.INSTANCE.bytes +
+          (long)ENTRY_BYTES * instance.fields().size();
+    } else if (object instanceof LoxFunction) {
+      group = FUNCTION;
+      size = AllocationTracker.Kind.BOUND_METHOD.bytes;
+    } else if (object instanceof LoxClass) {
+      group = CLASS;
+      // Laid out like an instance, with its methods for fields.
+      size = AllocationTracker.Kind.INSTANCE.bytes +
+          (long)ENTRY_BYTES * ((LoxClass)object).methods().size();
+    } else if (object instanceof String) {
+      group = STRING;
+      size = AllocationTracker.bytes(AllocationTracker.Kind.STRING,
+          ((String)object).length());
+    } else if (object instanceof Double) {
+      group = NUMBER;
+      size = NUMBER_BYTES;
+    }
+    groups.add(group);
+    sizes.add(size);
+    return id;
+  }
+
+  // For each node, the nodes at the other end of its edges.
+  private static int[][] adjacency(int count, int[] from, int[] to,
+                                   int edges) {
+    int[] degree = new int[count];
+    for (int i = 0; i < edges; i++) degree[from[i]]++;
+
+    int[][] adjacent = new int[count][];
+    for (int node = 0; node < count; node++) {
+      adjacent[node] = new int[degree[node]];
+      degree[node] = 0;
+    }
+    for (int i = 0; i < edges; i++) {
+      adjacent[from[i]][degree[from[i]]++] = to[i];
+    }
+    return adjacent;
+  }
+
+  // Every node is reachable from the root, which comes last. Iterative,
+  // since a long linked list would overflow the Java stack.
+  private static int[] postorder(int[][] successors) {
+    int count = successors.length;
+    int[] order = new int[count];
+    int done = 0;
+    boolean[] seen = new boolean[count];
+    int[] stack = new int[count];
+    int[] next = new int[count];
+    int top = 0;
+
+    stack[top++] = 0;
+    seen[0] = true;
+    while (top > 0) {
+      int node = stack[top - 1];
+      if (next[node] < successors[node].length) {
+        int successor = successors[node][next[node]++];
+        if (!seen[successor]) {
+          seen[successor] = true;
+          stack[top++] = successor;
+        }
+      } else {
+        top--;
+        order[done++] = node;
+      }
+    }
+    return order;
+  }
+
+  // The immediate dominator of each node, with the root its own.
+  private static int[] dominators(int[] order, int[][] predecessors) {
+    int count = order.length;
+    int[] rank = new int[count];
+    for (int i = 0; i < count; i++) rank[order[i]] = i;
+
+    int[] dominators = new int[count];
+    Arrays.fill(dominators, -1);
+    dominators[0] = 0;
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      // Reverse postorder, after the root.
+      for (int i = count - 2; i >= 0; i--) {
+        int node = order[i];
+        int dominator = -1;
+        for (int predecessor : predecessors[node]) {
+          if (dominators[predecessor] == -1) continue;
+          dominator = dominator == -1 ? predecessor
+              : intersect(predecessor, dominator, dominators, rank);
+        }
+        if (dominators[node] != dominator) {
+          dominators[node] = dominator;
+          changed = true;
+        }
+      }
+    }
+    return dominators;
+  }
+
+  private static int intersect(int a, int b, int[] dominators, int[] rank) {
+    while (a != b) {
+      while (rank[a] < rank[b]) a = dominators[a];
+      while (rank[b] < rank[a]) b = dominators[b];
+    }
+    return a;
+  }
+
+  private void printGroups(PrintStream out, int count, long[] retained,
+                           int[] dominators) {
+    int groupCount = groupNames.size();
+    long[] members = new long[groupCount];
+    long[] shallow = new long[groupCount];
+    for (int node = 1; node < count; node++) {
+      members[groups.get(node)]++;
+      shallow[groups.get(node)] += sizes.get(node);
+    }
+
+    // A group retains what its members do, less what they retain of each
+    // other, so a linked list isn't counted again for every node. Walk the
+    // dominator tree and only count a member with none above it.
+    int[] from = new int[count - 1];
+    int[] to = new int[count - 1];
+    for (int node = 1; node < count; node++) {
+      from[node - 1] = dominators[node];
+      to[node - 1] = node;
+    }
+    int[][] children = adjacency(count, from, to, count - 1);
+
+    long[] groupRetained = new long[groupCount];
+    int[] open = new int[groupCount];
+    int[] stack = new int[count];
+    int[] next = new int[count];
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[top - 1];
+      if (next[node] == 0 && node != 0) {
+        int group = groups.get(node);
+        if (open[group]++ == 0) groupRetained[group] += retained[node];
+      }
+      if (next[node] < children[node].length) {
+        stack[top++] = children[node][next[node]++];
+      } else {
+        top--;
+        if (node != 0) open[groups.get(node)]--;
+      }
+    }
+
+    Integer[] sorted = new Integer[groupCount];
+    for (int group = 0; group < groupCount; group++) sorted[group] = group;
+    Arrays.sort(sorted, Comparator.comparingLong(
+        (Integer group) -> groupRetained[group]).reversed());
+
+    out.printf(Locale.ROOT, "Heap: %d objects, %d bytes reachable%n",
+        count - 1, retained[0]);
+    out.printf(Locale.ROOT, "%-20s %10s %12s %12s%n",
+        "class", "count", "shallow", "retained");
+    for (int group : sorted) {
+      if (members[group] == 0) continue;
+      out.printf(Locale.ROOT, "%-20s %10d %12d %12d%n", groupNames.get(group),
+          members[group], shallow[group], groupRetained[group]);
+    }
+  }
+
+  // A linked list would fill the table one node at a time, so only the
+  // head of a chain of the same kind is listed.
+  private void printLargest(PrintStream out, int count, long[] retained,
+                            int[] dominators) {
+    Integer[] sorted = new Integer[count - 1];
+    for (int node = 1; node < count; node++) sorted[node - 1] = node;
+    Arrays.sort(sorted, Comparator.comparingLong(
+        (Integer node) -> retained[node]).reversed());
+
+    out.println();
+    out.println("Largest retainers:");
+    out.printf(Locale.ROOT, "%12s  %-20s %s%n", "retained", "object", "path");
+    int listed = 0;
+    for (int i = 0; i < sorted.length && listed < LARGEST; i++) {
+      int node = sorted[i];
+      if (groups.get(node).equals(groups.get(dominators[node]))) continue;
+      listed++;
+      out.printf(Locale.ROOT, "%12d  %-20s %s%n", retained[node],
+          describe(objects.get(node)), path(node));
+    }
+  }
+
+  private static String describe(Object object) {
+    if (object instanceof Environment) return "environment";
+    if (object instanceof LoxClass) return "class " + object;
+    if (object instanceof String) {
+      return "string of " + ((String)object).length();
+    }
+    if (object instanceof Double) return "number";
+    return object.toString();
+  }
+
+  // The names followed to first reach a node, from a global or <active>.
+  private String path(int node) {
+    List<String> segments = new ArrayList<>();
+    for (; node != 0; node = parents.get(node)) segments.add(labels.get(node));
+    Collections.reverse(segments);
+
+    int size = segments.size();
+    if (size > PATH_SEGMENTS) {
+      List<String> ends = new ArrayList<>(segments.subList(0, 3));
+      ends.add("<" + (size - 7) + " more>");
+      ends.addAll(segments.subList(size - 4, size));
+      segments = ends;
+    }
+    return String.join(".", segments);
+  }
+}
@@ -0,0 +1,241 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces calls to small helper functions with the helper's body, saving the
+// argument list, Environment, executeBlock and Return of a real call.
+//
+// Lox has no block expressions, so only functions whose whole body is
+// "return <expression>;" are inlined, which covers square(x), max(a, b) and
+// the like. The expression is copied into the call site with each parameter
+// replaced by its argument. Because there are no statements there are no
+// locals to rename, and because the copy sits where the call was, references
+// to globals still look up the same globals.
+//
+// To keep the exact behavior of a call, a function is only inlined when:
+//
+// * It's a global declared once and never assigned, or a local whose binding
+//   is never assigned, or a constant bound to one of those, and the call
+//   comes after its declaration.
+// * Its expression is at most MAX_SIZE nodes and reads only its parameters,
+//   globals and literals, so it calls nothing, assigns nothing and captures
+//   nothing from an enclosing function.
+// * Every argument is a literal or a local, which can't fail or have side
+//   effects, so evaluating one late, more than once or not at all is
+//   invisible.
+class Inliner extends Transformer {
+  static final int MAX_SIZE = 16;
+
+  // Whether globals can be trusted not to change behind our back. They can't
+  // when some code is resolved later, at the prompt or with --lazy.
+  private final boolean inlineGlobals;
+  // Top-level functions whose name nothing else declares or assigns.
+  private final Set<Stmt.Function> candidates = new HashSet<>();
+  // Inlinable functions seen so far in textual order, by global name or by
+  // the binding of the local that holds them.
+  private final Map<String, Stmt.Function> globals = new HashMap<>();
+  private final Map<Resolver.Binding, Stmt.Function> locals = new HashMap<>();
+
+  Inliner(Interpreter interpreter, Resolver resolver, boolean inlineGlobals) {
+    super(interpreter, resolver);
+    this.inlineGlobals = inlineGlobals;
+  }
+
+  List<Stmt> inline(List<Stmt> statements) {
+    if (inlineGlobals) findCandidates(statements);
+    return transform(statements);
+  }
+
+  private void findCandidates(List<Stmt> statements) {
+    Map<String, Integer> declared = new HashMap<>();
+    for (Stmt statement : statements) {
+      Token name = null;
+      if (statement instanceof Stmt.Function) name = ((Stmt.Function)statement).name;
+      if (statement instanceof Stmt.Var) name = ((Stmt.Var)statement).name;
+      if (statement instanceof Stmt.Class) name = ((Stmt.Class)statement).name;
+      if (name != null) declared.merge(name.lexeme, 1, Integer::sum);
+    }
+
+    for (Stmt statement : statements) {
+      if (!(statement instanceof Stmt.Function)) continue;
+      String name = ((Stmt.Function)statement).name.lexeme;
+      if (declared.get(name) == 1 && !resolver.globalAssigned(name)) {
+        candidates.add((Stmt.Function)statement);
+      }
+    }
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function function = (Stmt.Function)super.visitFunctionStmt(stmt);
+    if (inlinedExpression(function) == null) return function;
+
+    Resolver.Binding binding = resolver.binding(stmt);
+    if (binding != null) {
+      if (binding.neverAssigned()) locals.put(binding, function);
+    } else if (candidates.contains(stmt)) {
+      globals.put(function.name.lexeme, function);
+    }
+
+    return function;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr transformed = super.visitCallExpr(expr);
+    if (!(transformed instanceof Expr.Call)) return transformed;
+
+    Expr.Call call = (Expr.Call)transformed;
+    if (!(call.callee instanceof Expr.Variable)) return call;
+
+    Expr.Variable callee = (Expr.Variable)call.callee;
+    Resolver.Binding binding = resolver.binding(callee);
+    Stmt.Function function = inlinable(callee);
+    if (function == null) return call;
+    if (function.params.size() != call.arguments.size()) return call;
+
+    Map<String, Expr> arguments = new HashMap<>();
+    for (int i = 0; i < call.arguments.size(); i++) {
+      Expr argument = call.arguments.get(i);
+      if (!isTrivial(argument)) return call;
+      arguments.put(function.params.get(i).lexeme, argument);
+    }
+
+    // The call no longer reads the function's variable, and local arguments
+    // get counted again for each place they're substituted.
+    if (binding != null) binding.reads--;
+    for (Expr argument : call.arguments) {
+      Resolver.Binding read = resolver.binding(argument);
+      if (read != null) read.reads--;
+    }
+    return new Substitution(arguments).transform(inlinedExpression(function));
+  }
+
+  // A constant bound to an inlinable function is as good as the function,
+  // since it can't be assigned something else.
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Stmt transformed = super.visitVarStmt(stmt);
+    if (!stmt.isConst || !(stmt.initializer instanceof Expr.Variable)) {
+      return transformed;
+    }
+
+    Stmt.Function function = inlinable((Expr.Variable)stmt.initializer);
+    if (function == null) return transformed;
+
+    Resolver.Binding binding = resolver.binding(stmt);
+    if (binding != null) {
+      locals.put(binding, function);
+    } else {
+      globals.put(stmt.name.lexeme, function);
+    }
+    return transformed;
+  }
+
+  // The function a variable is known to hold, if it's one we can inline.
+  private Stmt.Function inlinable(Expr.Variable variable) {
+    Resolver.Binding binding = resolver.binding(variable);
+    if (binding != null) return locals.get(binding);
+    if (interpreter.localDepth(variable) == null) {
+      return globals.get(variable.name.lexeme);
+    }
+    // 'this' and 'super' have depths but no binding.
+    return null;
+  }
+
+  private boolean isTrivial(Expr argument) {
+    if (argument instanceof Expr.Literal) return true;
+    return argument instanceof Expr.Variable &&
+        resolver.binding(argument) != null;
+  }
+
+  // The returned expression if the function is small and simple enough to
+  // inline, otherwise null.
+  private Expr inlinedExpression(Stmt.Function function) {
+    if (function.body.size() != 1) return null;
+    if (!(function.body.get(0) instanceof Stmt.Return)) return null;
+
+    Expr value = ((Stmt.Return)function.body.get(0)).value;
+    if (value == null) return null;
+
+    Set<String> params = new HashSet<>();
+    for (Token param : function.params) params.add(param.lexeme);
+
+    int size = size(value, params);
+    if (size < 0 || size > MAX_SIZE) return null;
+    return value;
+  }
+
+  // Counts the nodes in an expression, or returns -1 if it contains anything
+  // that rules out inlining.
+  private int size(Expr expr, Set<String> params) {
+    if (expr instanceof Expr.Literal) return 1;
+
+    if (expr instanceof Expr.Variable) {
+      Integer depth = interpreter.localDepth(expr);
+      // Globals have no depth. Parameters are in the function's own scope.
+      if (depth == null) return 1;
+      if (depth == 0 && params.contains(((Expr.Variable)expr).name.lexeme)) {
+        return 1;
+      }
+      return -1;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return sum(size(binary.left, params), size(binary.right, params));
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return sum(size(logical.left, params), size(logical.right, params));
+    }
+
+    if (expr instanceof Expr.Unary) {
+      return sum(size(((Expr.Unary)expr).right, params), 0);
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      return sum(size(((Expr.Grouping)expr).expression, params), 0);
+    }
+
+    if (expr instanceof Expr.Get) {
+      return sum(size(((Expr.Get)expr).object, params), 0);
+    }
+
+    // Calls, assignments, 'this' and 'super'.
+    return -1;
+  }
+
+  private int sum(int a, int b) {
+    if (a < 0 || b < 0) return -1;
+    return a + b + 1;
+  }
+
+  // Copies an inlined expression, replacing reads of parameters with the
+  // arguments. Nodes that don't mention a parameter are shared, which is safe
+  // since nodes are immutable.
+  private class Substitution extends Transformer {
+    private final Map<String, Expr> arguments;
+
+    Substitution(Map<String, Expr> arguments) {
+      super(Inliner.this.interpreter, Inliner.this.resolver);
+      this.arguments = arguments;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      if (interpreter.localDepth(expr) == null) return expr;
+
+      Expr argument = arguments.get(expr.name.lexeme);
+      // A local argument is now read once for every use of its parameter.
+      Resolver.Binding binding = resolver.binding(argument);
+      if (binding != null) binding.reads++;
+      return argument;
+    }
+  }
+}
@@ -1,17 +1,52 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Interpreter implements Expr.Visitor<Object>,
                              Stmt.Visitor<Void> {
   final Environment globals = new Environment();
   private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // Swapped for a concurrent map by enableTiering().
+  private Map<Expr, Integer> locals = new HashMap<>();
+  // Held by a hoisted temporary whose expression failed, see visitHoistStmt.
+  private static final Object UNAVAILABLE = new Object();
+  // Function bodies that were skipped by a lazy Parser and not yet called.
+  private final Map<Stmt.Function, DeferredBody> deferred = new HashMap<>();
+  // Globals declared with const.
+  private Set<String> constants = new HashSet<>();
+  // Result caches for the functions --memoize found to be pure.
+  private final Map<Stmt.Function, Memo> memos = new LinkedHashMap<>();
+  // Set by enableTiering() for --tiered.
+  private TieredCompiler compiler = null;
+  // The profile of the function running now, which its loops count toward.
+  TieredCompiler.Profile profile = null;
+  // Set for --profile and --allocations.
+  ShadowStack frames = null;
+  // Set by enableTimings() for --timings.
+  CallTimer timer = null;
+  // The bitmap --coverage marks each statement run in.
+  long[] covered = null;
 
   Interpreter() {
+    defineNatives();
+  }
+
+  // Starts over with only the natives defined, as if the program had never
+  // run. Resolved depths are kept, so it can be run again as it is.
+  void resetGlobals() {
+    globals.clear();
+    defineNatives();
+  }
+
+  private void defineNatives() {
     globals.define("clock", new LoxCallable() {
       @Override
       public int arity() { return 0; }
@@ -46,11 +81,26 @@ class Interpreter implements Expr.Visitor<Object>,
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
     LoxFunction function = new LoxFunction(stmt, environment,
-      false);
+      false, memos.get(stmt), profile(stmt));
     environment.define(stmt.name.lexeme, function);
     return null;
   }
 
+  // Evaluates a loop invariant ahead of its loop. If that fails, the error
+  // is left for the original expression to raise where it's used.
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    Object value;
+    try {
+      value = evaluate(stmt.expression);
+    } catch (RuntimeError error) {
+      value = UNAVAILABLE;
+    }
+
+    environment.define(stmt.name.lexeme, value);
+    return null;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
@@ -89,9 +139,18 @@ class Interpreter implements Expr.Visitor<Object>,
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    if (compiler != null && profile == null) {
+      TieredCompiler.Profile loop = compiler.profile(stmt);
+      if (loop != null) {
+        executeReplaceable(stmt, loop);
+        return null;
+      }
+    }
+
     while (isTruthy(evaluate(stmt.condition)))/*  {
       try { */
       execute(stmt.body);
+      if (profile != null) profile.backEdge();
  /*       }
        catch (BreakException e) {
           break;
@@ -100,6 +159,31 @@ class Interpreter implements Expr.Visitor<Object>,
     return null;
   }
 
+  // A loop outside any function, with --tiered. Loops inside it count toward
+  // its profile. Once the compiler has optimized it, the remaining
+  // iterations run the optimized loop instead, in the same environment so
+  // every variable carries over. Its condition hasn't been checked yet, so
+  // switching between iterations skips or repeats nothing.
+  private void executeReplaceable(Stmt.While stmt,
+                                  TieredCompiler.Profile loop) {
+    profile = loop;
+    try {
+      for (;;) {
+        List<Stmt> compiled = loop.compiled();
+        if (compiled != null) {
+          executeBlock(compiled, environment);
+          return;
+        }
+
+        if (!isTruthy(evaluate(stmt.condition))) return;
+        execute(stmt.body);
+        loop.backEdge();
+      }
+    } finally {
+      profile = null;
+    }
+  }
+
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
@@ -169,6 +253,11 @@ class Interpreter implements Expr.Visitor<Object>,
     return lookUpVariable(expr.keyword, expr);
   }
 
+  @Override
+  public Object visitNegateExpr(Expr.Negate expr) {
+    return -evaluateNumber(expr.right);
+  }
+
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
     Object right = evaluate(expr.right);
@@ -199,14 +288,153 @@ class Interpreter implements Expr.Visitor<Object>,
     }
   }
 
+  // Dispatches on the node kind rather than through accept(), which saves
+  // the megamorphic virtual call per node. Node classes are final, so each
+  // cast is a single exact-class check.
   private void execute(Stmt stmt) {
-    stmt.accept(this);
+    if (OpCount.ENABLED) OpCount.stmts[stmt.kind]++;
+    if (Metrics.active != null) Metrics.active.statements.increment();
+    if (frames != null) frames.at(stmt);
+    if (covered != null) covered[stmt.coverage >>> 6] |= 1L << stmt.coverage;
+    switch (stmt.kind) {
+      case Stmt.BLOCK: visitBlockStmt((Stmt.Block)stmt); break;
+      case Stmt.CLASS: visitClassStmt((Stmt.Class)stmt); break;
+      case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression)stmt); break;
+      case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function)stmt); break;
+      case Stmt.HOIST: visitHoistStmt((Stmt.Hoist)stmt); break;
+      case Stmt.IF: visitIfStmt((Stmt.If)stmt); break;
+      case Stmt.PRINT: visitPrintStmt((Stmt.Print)stmt); break;
+      case Stmt.RETURN: visitReturnStmt((Stmt.Return)stmt); break;
+      case Stmt.VAR: visitVarStmt((Stmt.Var)stmt); break;
+      case Stmt.WHILE: visitWhileStmt((Stmt.While)stmt); break;
+    }
   }
 
   void resolve (Expr expr, int depth) {
     locals.put(expr, depth);
   }
 
+  Integer localDepth(Expr expr) {
+    return locals.get(expr);
+  }
+
+  // The compiler thread resolves the code it optimizes while this one runs,
+  // and reads constants that later REPL lines may declare.
+  void enableTiering(TieredCompiler compiler) {
+    locals = new ConcurrentHashMap<>(locals);
+    Set<String> declared = ConcurrentHashMap.newKeySet();
+    declared.addAll(constants);
+    constants = declared;
+    this.compiler = compiler;
+  }
+
+  // Also defines timings(), which prints the table so far to stderr.
+  void enableTimings() {
+    timer = new CallTimer();
+    globals.define("timings", new LoxCallable() {
+      @Override
+      public int arity() { return 0; }
+
+      @Override
+      public Object call(Interpreter interpreter,
+                          List<Object> arguments) {
+        timer.print(System.err);
+        return null;
+      }
+
+      @Override
+      public String toString() { return "<native fn>"; }
+    });
+  }
+
+  // For --heap. Defines heap(), which prints what the script can reach from
+  // where it's called, and what holds on to most of it, to stderr.
+  void enableHeap() {
+    globals.define("heap", new LoxCallable() {
+      @Override
+      public int arity() { return 0; }
+
+      @Override
+      public Object call(Interpreter interpreter,
+                          List<Object> arguments) {
+        new HeapInspector(globals).print(environment, System.err);
+        return null;
+      }
+
+      @Override
+      public String toString() { return "<native fn>"; }
+    });
+  }
+
+  // Called by the Resolver for every function it resolves.
+  void resolveFunction(Stmt.Function function, Resolver resolver) {
+    if (compiler != null) compiler.register(function, resolver);
+  }
+
+  // Called by the Resolver for loops outside any function.
+  void resolveLoop(Stmt.While loop, Resolver resolver, boolean global) {
+    if (compiler != null) compiler.register(loop, resolver, global);
+  }
+
+  private TieredCompiler.Profile profile(Stmt.Function function) {
+    if (compiler == null) return null;
+    return compiler.profile(function);
+  }
+
+  boolean isConstant(String name) {
+    return constants.contains(name);
+  }
+
+  void declareConstant(String name) {
+    constants.add(name);
+  }
+
+  void memoize(Set<Stmt.Function> functions) {
+    for (Stmt.Function function : functions) {
+      memos.put(function, new Memo(function.name.lexeme));
+    }
+  }
+
+  Collection<Memo> memos() {
+    return memos.values();
+  }
+
+  void defer(Map<Stmt.Function, DeferredBody> bodies) {
+    deferred.putAll(bodies);
+  }
+
+  DeferredBody deferredBody(Stmt.Function function) {
+    return deferred.get(function);
+  }
+
+  // Parses and resolves a lazily skipped function body the first time the
+  // function is called. Does nothing for bodies that were parsed up front.
+  void materialize(Stmt.Function function) {
+    DeferredBody body = deferred.remove(function);
+    if (body == null) return;
+
+    boolean hadError = Lox.hadError;
+    Lox.hadError = false;
+
+    Parser parser = new Parser(body.tokens, true);
+    List<Stmt> statements = parser.parseBody(body.start);
+    defer(parser.deferredBodies());
+    if (!Lox.hadError) {
+      new Resolver(this).resolveDeferred(function, body, statements);
+    }
+
+    if (Lox.hadError) {
+      // Keep it deferred so every call fails the same way.
+      deferred.put(function, body);
+      throw new RuntimeError(function.name,
+          "Function '" + function.name.lexeme + "' has errors.");
+    }
+
+    Lox.hadError = hadError;
+    function.body.addAll(statements);
+    function.deferred = false;
+  }
+
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
     executeBlock(stmt.statements, new Environment(environment));
@@ -247,8 +475,8 @@ class Interpreter implements Expr.Visitor<Object>,
 
     Map<String, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, 
-        method.name.lexeme.equals("init"));
+      LoxFunction function = new LoxFunction(method, environment,
+        method.name.lexeme.equals("init"), null, profile(method));
       methods.put(method.name.lexeme, function);
     }
 
@@ -260,6 +488,16 @@ class Interpreter implements Expr.Visitor<Object>,
     }
 
     environment.assign(stmt.name, klass);
+
+    if (!LoxEvents.recording()) return null;
+    LoxEvents.ClassDefinition event = new LoxEvents.ClassDefinition();
+    if (event.shouldCommit()) {
+      event.name = klass.name;
+      if (superclass != null) event.superclass = klass.superclass.name;
+      event.methods = methods.size();
+      event.line = stmt.name.line();
+      event.commit();
+    }
     return null;
   }
 
@@ -274,13 +512,13 @@ class Interpreter implements Expr.Visitor<Object>,
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
 
@@ -306,8 +544,103 @@ class Interpreter implements Expr.Visitor<Object>,
     return evaluate(expr.expression);
   }
 
+  // A bound method is a new object on every Get, so one computed ahead of
+  // the loop isn't reused either.
+  @Override
+  public Object visitHoistedExpr(Expr.Hoisted expr) {
+    Object value = evaluate(expr.temp);
+    if (value == UNAVAILABLE || value instanceof LoxFunction) {
+      return evaluate(expr.expression);
+    }
+    return value;
+  }
+
   private Object evaluate(Expr expr) {
-    return expr.accept(this);
+    if (OpCount.ENABLED) OpCount.exprs[expr.kind]++;
+    switch (expr.kind) {
+      case Expr.ARITHMETIC: return visitArithmeticExpr((Expr.Arithmetic)expr);
+      case Expr.ASSIGN: return visitAssignExpr((Expr.Assign)expr);
+      case Expr.BINARY: return visitBinaryExpr((Expr.Binary)expr);
+      case Expr.CALL: return visitCallExpr((Expr.Call)expr);
+      case Expr.GET: return visitGetExpr((Expr.Get)expr);
+      case Expr.GROUPING: return visitGroupingExpr((Expr.Grouping)expr);
+      case Expr.HOISTED: return visitHoistedExpr((Expr.Hoisted)expr);
+      case Expr.LITERAL: return visitLiteralExpr((Expr.Literal)expr);
+      case Expr.LOGICAL: return visitLogicalExpr((Expr.Logical)expr);
+      case Expr.NEGATE: return visitNegateExpr((Expr.Negate)expr);
+      case Expr.SET: return visitSetExpr((Expr.Set)expr);
+      case Expr.SUPER: return visitSuperExpr((Expr.Super)expr);
+      case Expr.THIS: return visitThisExpr((Expr.This)expr);
+      case Expr.UNARY: return visitUnaryExpr((Expr.Unary)expr);
+      case Expr.VARIABLE: return visitVariableExpr((Expr.Variable)expr);
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  // TypeInferrer proved both operands are numbers, so there's nothing to
+  // check.
+  @Override
+  public Object visitArithmeticExpr(Expr.Arithmetic expr) {
+    switch (expr.operator.type) {
+      case GREATER:
+        return evaluateNumber(expr.left) > evaluateNumber(expr.right);
+      case GREATER_EQUAL:
+        return evaluateNumber(expr.left) >= evaluateNumber(expr.right);
+      case LESS:
+        return evaluateNumber(expr.left) < evaluateNumber(expr.right);
+      case LESS_EQUAL:
+        return evaluateNumber(expr.left) <= evaluateNumber(expr.right);
+    }
+
+    return calculate(expr);
+  }
+
+  // The primitive path under Arithmetic and Negate. Operands that are
+  // arithmetic themselves stay doubles all the way down, so a nested
+  // expression boxes only its result instead of every step.
+  private double evaluateNumber(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ARITHMETIC: {
+        Expr.Arithmetic arithmetic = (Expr.Arithmetic)expr;
+        // A comparison is never an operand here, but it's a Boolean.
+        if (isComparison(arithmetic.operator.type)) break;
+        if (OpCount.ENABLED) OpCount.exprs[expr.kind]++;
+        return calculate(arithmetic);
+      }
+      case Expr.GROUPING:
+        if (OpCount.ENABLED) OpCount.exprs[expr.kind]++;
+        return evaluateNumber(((Expr.Grouping)expr).expression);
+      case Expr.LITERAL:
+        if (OpCount.ENABLED) OpCount.exprs[expr.kind]++;
+        return (double)((Expr.Literal)expr).value;
+      case Expr.NEGATE:
+        if (OpCount.ENABLED) OpCount.exprs[expr.kind]++;
+        return -evaluateNumber(((Expr.Negate)expr).right);
+    }
+
+    return (double)evaluate(expr);
+  }
+
+  private double calculate(Expr.Arithmetic expr) {
+    double left = evaluateNumber(expr.left);
+    double right = evaluateNumber(expr.right);
+
+    switch (expr.operator.type) {
+      case MINUS: return left - right;
+      case PLUS: return left + right;
+      case SLASH: return left / right;
+      case STAR: return left * right;
+    }
+
+    // Unreachable.
+    return 0;
+  }
+
+  private static boolean isComparison(TokenType type) {
+    return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+        type == TokenType.LESS || type == TokenType.LESS_EQUAL;
   }
 
   @Override
@@ -339,7 +672,12 @@ class Interpreter implements Expr.Visitor<Object>,
         }
 
         if (left instanceof String && right instanceof String) {
-          return (String)left + (String)right;
+          String result = (String)left + (String)right;
+          if (AllocationTracker.active != null) {
+            AllocationTracker.active.allocated(
+                AllocationTracker.Kind.STRING, result.length());
+          }
+          return result;
         }
 
         throw new RuntimeError(expr.operator,
@@ -377,6 +715,8 @@ class Interpreter implements Expr.Visitor<Object>,
           arguments.size() + ".");
     }
 
+    if (OpCount.ENABLED) OpCount.calls++;
+    if (Metrics.active != null) Metrics.active.calls.increment();
     return function.call(this, arguments);
   }
 
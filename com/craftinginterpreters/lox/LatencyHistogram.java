@@ -0,0 +1,80 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Records durations in nanoseconds over their whole range, from a few
+// nanoseconds to hours, at a fixed relative precision. Values below 16 get
+// a bucket each. Above that, each power of two is split into 16 buckets, so
+// a value is reported at most 1/16th, about 6%, below what it was. That
+// needs only 976 buckets for any long.
+//
+// Recording is lock-free, so the counts can be read while the interpreter
+// keeps adding to them.
+class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    buckets.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  long count() {
+    return count.get();
+  }
+
+  long total() {
+    return total.get();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    long count = count();
+    return count == 0 ? 0 : (double)total() / count;
+  }
+
+  // The smallest recorded value at or above the given fraction of them,
+  // rounded down to its bucket.
+  long percentile(double fraction) {
+    long count = count();
+    if (count == 0) return 0;
+
+    long rank = Math.max(1, (long)Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return Math.min(lowest(i), max());
+    }
+    return max();
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int)value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  // The smallest value that goes in a bucket.
+  private static long lowest(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return (1L << exponent) | (sub << (exponent - SUB_BITS));
+  }
+}
@@ -0,0 +1,464 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Loop-invariant code motion. An expression in a while loop's condition or
+// body that gives the same value on every iteration is computed once, by a
+// Stmt.Hoist placed just before the loop, and the loop reads the result from
+// a temporary through an Expr.Hoisted. For loops are desugared to whiles, so
+// they're covered too.
+//
+// An expression is invariant when it's made of arithmetic, comparisons,
+// logical operators and property reads over literals, 'this' and variables
+// the loop never assigns. Nothing in it can call, assign or set anything, so
+// evaluating it early has no effect of its own. Loops containing calls are
+// treated more carefully, since the callee may assign a captured local or a
+// global, or set a field.
+//
+// Hoisting must not move a runtime error either. The Hoist statement catches
+// one and leaves a marker in the temporary, and Expr.Hoisted keeps the
+// original expression to evaluate in place when it finds the marker, so the
+// error is raised where it always was, and not at all if the loop never gets
+// there.
+//
+// Only loops that sit directly in a list of statements are handled, since
+// that's where the Hoist statement can go. This runs last: the temporaries
+// aren't known to the Resolver, so the other passes couldn't see them.
+class LoopOptimizer extends Transformer {
+  // Whether globals can only be assigned by code we can see.
+  private final boolean wholeProgram;
+  // How many blocks and function bodies enclose the statements being
+  // transformed. Zero means the global scope.
+  private int scopeDepth = 0;
+  private int temporaries = 0;
+
+  LoopOptimizer(Interpreter interpreter, Resolver resolver,
+                boolean wholeProgram) {
+    super(interpreter, resolver);
+    this.wholeProgram = wholeProgram;
+  }
+
+  @Override
+  List<Stmt> transform(List<Stmt> statements) {
+    // Inner loops first, so their Hoist statements can be hoisted further
+    // out of the loops around them.
+    List<Stmt> transformed = super.transform(statements);
+
+    List<Stmt> result = null;
+    for (int i = 0; i < transformed.size(); i++) {
+      Stmt statement = transformed.get(i);
+      if (!(statement instanceof Stmt.While)) {
+        if (result != null) result.add(statement);
+        continue;
+      }
+
+      List<Stmt> hoisted = new ArrayList<>();
+      Stmt loop = hoist((Stmt.While)statement, hoisted);
+      if (hoisted.isEmpty()) {
+        if (result != null) result.add(statement);
+        continue;
+      }
+
+      if (result == null) result = new ArrayList<>(transformed.subList(0, i));
+      result.addAll(hoisted);
+      result.add(loop);
+    }
+
+    return result == null ? transformed : result;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    scopeDepth++;
+    try {
+      return super.visitBlockStmt(stmt);
+    } finally {
+      scopeDepth--;
+    }
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    scopeDepth++;
+    try {
+      return super.visitFunctionStmt(stmt);
+    } finally {
+      scopeDepth--;
+    }
+  }
+
+  private Stmt hoist(Stmt.While loop, List<Stmt> hoisted) {
+    Effects effects = new Effects();
+    effects.scan(loop);
+
+    Hoister hoister = new Hoister(effects, hoisted);
+    Expr condition = hoister.transform(loop.condition);
+    Stmt body = hoister.transformBody(loop.body);
+    if (condition == loop.condition && body == loop.body) return loop;
+    return new Stmt.While(loop.keyword, condition, body);
+  }
+
+  // What running a loop may change.
+  private class Effects implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Locals declared or assigned inside the loop.
+    final Set<Resolver.Binding> assigned = new HashSet<>();
+    final Set<String> assignedGlobals = new HashSet<>();
+    boolean hasCalls = false;
+    boolean hasSets = false;
+
+    void scan(Stmt stmt) {
+      if (stmt != null) stmt.accept(this);
+    }
+
+    void scan(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    void scan(List<Stmt> statements) {
+      for (Stmt statement : statements) scan(statement);
+    }
+
+    // A declaration in the loop runs again on every iteration, so the local
+    // counts as assigned.
+    private void declares(Stmt declaration) {
+      Resolver.Binding binding = resolver.binding(declaration);
+      if (binding != null) assigned.add(binding);
+    }
+
+    @Override
+    public Void visitArithmeticExpr(Expr.Arithmetic expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      scan(expr.value);
+      Resolver.Binding binding = resolver.binding(expr);
+      if (binding != null) {
+        assigned.add(binding);
+      } else {
+        assignedGlobals.add(expr.name.lexeme);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      hasCalls = true;
+      scan(expr.callee);
+      for (Expr argument : expr.arguments) scan(argument);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      scan(expr.object);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      scan(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistedExpr(Expr.Hoisted expr) {
+      scan(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitNegateExpr(Expr.Negate expr) {
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      hasSets = true;
+      scan(expr.object);
+      scan(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scan(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      declares(stmt);
+      scan(stmt.superclass);
+      for (Stmt.Function method : stmt.methods) scan(method.body);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      scan(stmt.expression);
+      return null;
+    }
+
+    // Nested functions only run when called, which sets hasCalls, but what
+    // they assign is still collected to be safe.
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      declares(stmt);
+      scan(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistStmt(Stmt.Hoist stmt) {
+      scan(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      scan(stmt.condition);
+      scan(stmt.thenBranch);
+      scan(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      scan(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      scan(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      declares(stmt);
+      scan(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      scan(stmt.condition);
+      scan(stmt.body);
+      return null;
+    }
+  }
+
+  // Replaces the largest invariant expressions in one loop with reads of
+  // temporaries, and collects the Hoist statements that fill them.
+  private class Hoister extends Transformer {
+    private final Effects effects;
+    private final List<Stmt> hoisted;
+    // Blocks entered since the loop, which is how much deeper a variable
+    // use here is than the same variable before the loop.
+    private int blockDepth = 0;
+
+    Hoister(Effects effects, List<Stmt> hoisted) {
+      super(LoopOptimizer.this.interpreter, LoopOptimizer.this.resolver);
+      this.effects = effects;
+      this.hoisted = hoisted;
+    }
+
+    @Override
+    Expr transform(Expr expr) {
+      if (expr == null) return null;
+      if (worthHoisting(expr) && isInvariant(expr)) return hoist(expr);
+      return expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+      blockDepth++;
+      try {
+        return super.visitBlockStmt(stmt);
+      } finally {
+        blockDepth--;
+      }
+    }
+
+    // Function and class bodies run in environments of their own, and only
+    // when called, so they stay as they are.
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      return stmt;
+    }
+
+    private Expr hoist(Expr expr) {
+      // Made up here, so it has no place in the source.
+      Token name = new Token(TokenType.IDENTIFIER,
+          "$licm" + temporaries++, null, null, 0);
+      hoisted.add(new Stmt.Hoist(name, new Shift(blockDepth).transform(expr)));
+
+      // The temporary lives in the scope holding the loop, or is a global
+      // if that's the top level.
+      Expr.Variable temp = new Expr.Variable(name);
+      if (scopeDepth > 0) interpreter.resolve(temp, blockDepth);
+      return new Expr.Hoisted(temp, expr);
+    }
+
+    // A bare variable, literal or 'this' is already as cheap as reading the
+    // temporary.
+    private boolean worthHoisting(Expr expr) {
+      if (expr instanceof Expr.Grouping) {
+        return worthHoisting(((Expr.Grouping)expr).expression);
+      }
+      return expr instanceof Expr.Binary || expr instanceof Expr.Unary ||
+          expr instanceof Expr.Arithmetic || expr instanceof Expr.Negate ||
+          expr instanceof Expr.Logical || expr instanceof Expr.Get;
+    }
+
+    private boolean isInvariant(Expr expr) {
+      if (expr instanceof Expr.Literal) return true;
+      if (expr instanceof Expr.This) return true;
+      if (expr instanceof Expr.Variable) return isInvariant((Expr.Variable)expr);
+
+      if (expr instanceof Expr.Grouping) {
+        return isInvariant(((Expr.Grouping)expr).expression);
+      }
+
+      if (expr instanceof Expr.Binary) {
+        Expr.Binary binary = (Expr.Binary)expr;
+        return isInvariant(binary.left) && isInvariant(binary.right);
+      }
+
+      if (expr instanceof Expr.Arithmetic) {
+        Expr.Arithmetic arithmetic = (Expr.Arithmetic)expr;
+        return isInvariant(arithmetic.left) && isInvariant(arithmetic.right);
+      }
+
+      if (expr instanceof Expr.Logical) {
+        Expr.Logical logical = (Expr.Logical)expr;
+        return isInvariant(logical.left) && isInvariant(logical.right);
+      }
+
+      if (expr instanceof Expr.Unary) {
+        return isInvariant(((Expr.Unary)expr).right);
+      }
+
+      if (expr instanceof Expr.Negate) {
+        return isInvariant(((Expr.Negate)expr).right);
+      }
+
+      // Fields change through Set, which a call could do too.
+      if (expr instanceof Expr.Get) {
+        return !effects.hasSets && !effects.hasCalls &&
+            isInvariant(((Expr.Get)expr).object);
+      }
+
+      // Calls, assignments, 'super' and expressions already hoisted.
+      return false;
+    }
+
+    private boolean isInvariant(Expr.Variable variable) {
+      Integer depth = interpreter.localDepth(variable);
+      Resolver.Binding binding = resolver.binding(variable);
+
+      if (depth == null) {
+        String name = variable.name.lexeme;
+        if (effects.assignedGlobals.contains(name)) return false;
+        return !effects.hasCalls ||
+            (wholeProgram && !resolver.globalAssigned(name));
+      }
+
+      // Declared inside the loop.
+      if (depth < blockDepth) return false;
+      // Only 'this' and 'super' have a depth but no binding.
+      if (binding == null) return false;
+      if (effects.assigned.contains(binding)) return false;
+      if (binding.isConst) return true;
+
+      // A closure called from the loop could assign it.
+      return !effects.hasCalls ||
+          (!binding.escaped && (!binding.captured || binding.writes == 0));
+    }
+  }
+
+  // Copies an expression for use before the loop, where every local is
+  // 'depth' fewer scopes away.
+  private class Shift extends Transformer {
+    private final int depth;
+
+    Shift(int depth) {
+      super(LoopOptimizer.this.interpreter, LoopOptimizer.this.resolver);
+      this.depth = depth;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      Integer distance = interpreter.localDepth(expr);
+      if (distance == null || depth == 0) return expr;
+
+      Expr.Variable copy = replaced(expr, new Expr.Variable(expr.name));
+      interpreter.resolve(copy, distance - depth);
+      return copy;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+      Integer distance = interpreter.localDepth(expr);
+      if (distance == null || depth == 0) return expr;
+
+      Expr.This copy = new Expr.This(expr.keyword);
+      interpreter.resolve(copy, distance - depth);
+      return copy;
+    }
+  }
+}
@@ -5,60 +5,386 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    static final Interpreter interpreter = new Interpreter();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // Parse function bodies on first call instead of up front.
+    private static boolean lazy = false;
+    // Only parse and resolve everything, reporting errors without running.
+    private static boolean check = false;
+    // Load the resolved AST from a .loxc file next to the script when the
+    // source hasn't changed, and write one when it has.
+    private static boolean cache = false;
+    // Run the optimizer passes between the Resolver and the Interpreter.
+    private static boolean optimize = true;
+    // Inline calls to small functions. Off makes stack traces easier to follow.
+    private static boolean inline = true;
+    // Print how much of the code type inference could specialize.
+    private static boolean showTypes = false;
+    // Cache the results of pure functions, and report how well that went.
+    private static boolean memoize = false;
+    // Start every function unoptimized and optimize the hot ones on a
+    // background thread. Not with --cache, whose tree is optimized already.
+    private static boolean tiered = false;
+    // Set when tiering is on. Its profile is kept in a .loxp file.
+    private static TieredCompiler compiler = null;
+    // Time calls and print a table of them at exit.
+    private static boolean timings = false;
+    // Define heap(), which reports what the script is holding on to.
+    private static boolean heap = false;
+    // Where --profile writes the stacks it sampled, in collapsed format.
+    private static Path profileFile = null;
+    private static Sampler sampler = null;
+    // Sample every Nth allocation and report where they were made. Zero
+    // when off.
+    private static int allocationInterval = 0;
+    // Count what's run for JMX, and serve it over HTTP on this port unless
+    // it's zero. Negative when off.
+    private static int metricsPort = -1;
+    // Where --coverage writes which lines ran, as LCOV.
+    private static Path coverageFile = null;
+    // At the prompt each line is compiled on its own, so a later line may
+    // redefine a global an earlier one was optimized against.
+    private static boolean interactive = false;
+
+    // The Resolver, the passes and the Interpreter all walk the tree
+    // recursively, so scripts run on a thread with room for the deepest tree
+    // the Parser accepts. See Parser.MAX_DEPTH. Only the part that's used
+    // is ever committed.
+    static final long STACK_SIZE = 64L << 20;
+
+    public static void main(String[] args) throws IOException,
+                                                  InterruptedException {
+        // Whatever the script dies of is rethrown here, so it still ends
+        // the process the way it would on the main thread.
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+          try {
+            start(args);
+          } catch (IOException | RuntimeException | Error error) {
+            failure[0] = error;
+          }
+        }, "lox", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof IOException) throw (IOException)failure[0];
+        if (failure[0] instanceof RuntimeException) {
+          throw (RuntimeException)failure[0];
+        }
+        if (failure[0] != null) throw (Error)failure[0];
+    }
 
     // I suspect args means text symbols. So this args > 1 means it's dealing with a token.
     // If it finds a token, it prints "Usage: jlox []"?
     // if the token is exactly one character long, then there's a file that gets run?
     // otherwise the prompt gets run
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-          System.out.println("Usage: jlox [script]");
-          System.exit(64);
-        } else if (args.length == 1) {
-          runFile(args[0]);
+    private static void start(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("bench")) {
+          Bench.main(Arrays.copyOfRange(args, 1, args.length));
+          return;
+        }
+
+        String script = null;
+        for (String arg : args) {
+          if (arg.equals("--lazy")) {
+            lazy = true;
+          } else if (arg.equals("--check")) {
+            check = true;
+          } else if (arg.equals("--cache")) {
+            cache = true;
+          } else if (arg.equals("--no-optimize")) {
+            optimize = false;
+          } else if (arg.equals("--no-inline")) {
+            inline = false;
+          } else if (arg.equals("--types")) {
+            showTypes = true;
+          } else if (arg.equals("--memoize")) {
+            memoize = true;
+          } else if (arg.equals("--tiered")) {
+            tiered = true;
+          } else if (arg.equals("--timings")) {
+            timings = true;
+          } else if (arg.equals("--heap")) {
+            heap = true;
+          } else if (arg.startsWith("--profile=")) {
+            profileFile = Paths.get(arg.substring("--profile=".length()));
+          } else if (arg.equals("--allocations")) {
+            allocationInterval = AllocationTracker.DEFAULT_INTERVAL;
+          } else if (arg.startsWith("--allocations=")) {
+            allocationInterval = positive(
+                arg.substring("--allocations=".length()));
+          } else if (arg.equals("--metrics")) {
+            metricsPort = 0;
+          } else if (arg.startsWith("--metrics=")) {
+            metricsPort = positive(arg.substring("--metrics=".length()));
+          } else if (arg.startsWith("--coverage=")) {
+            coverageFile = Paths.get(arg.substring("--coverage=".length()));
+          } else if (arg.startsWith("--") || script != null) {
+            usage();
+          } else {
+            script = arg;
+          }
+        }
+
+        // Coverage needs every statement numbered by the Resolver before
+        // the script starts, and run as written: no bodies left unparsed, no
+        // trees from the cache, which skip resolving, and no optimizing,
+        // which removes and inlines statements that would then never be
+        // marked as run.
+        if (coverageFile != null) {
+          lazy = false;
+          cache = false;
+          optimize = false;
+          Coverage.active = new Coverage();
+        }
+
+        tiered = tiered && optimize && !cache && !check;
+        if (tiered) {
+          compiler = new TieredCompiler();
+          interpreter.enableTiering(compiler);
+        }
+
+        if (metricsPort >= 0) {
+          try {
+            Metrics.start(metricsPort);
+          } catch (IOException error) {
+            System.err.println("Could not start metrics: " +
+                error.getMessage());
+          }
+        }
+
+        if (script != null) {
+          runFile(script);
         } else {
         //runPrompt();
         runFile("test.lox");
         }
+        if (Metrics.active != null) Metrics.active.stop();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--lazy | --check | --tiered] [--cache] [--no-optimize] [--no-inline] [--types] [--memoize] [--timings] [--heap] [--profile=out.folded] [--allocations[=N]] [--metrics[=port]] [--coverage=out.info] [script]");
+        System.out.println("       jlox bench <script> [--warmup N] [--iterations M] [--format json|csv]");
+        System.exit(64);
+    }
+
+    private static int positive(String value) {
+        try {
+          int number = Integer.parseInt(value);
+          if (number > 0) return number;
+        } catch (NumberFormatException error) {
+          // Reported below.
+        }
+        usage();
+        return 0;
     }
 
     public static List<Stmt> getStatements(String source) {
+        return getStatements(new Source(source));
+    }
+
+    static List<Stmt> getStatements(Source source) {
+        return compile(source, false, false);
+    }
+
+    // Scans, parses and resolves, then optimizes if asked to. Returns null if
+    // there was an error.
+    static List<Stmt> compile(Source source, boolean lazy,
+                              boolean optimize) {
+        if (!LoxEvents.recording()) {
+          return compile(source, lazy, optimize, null);
+        }
+
+        LoxEvents.Compile event = new LoxEvents.Compile();
+        event.begin();
+        List<Stmt> statements = compile(source, lazy, optimize, event);
+        event.commit();
+        return statements;
+    }
+
+    // The event is null when nothing is recording.
+    private static List<Stmt> compile(Source source, boolean lazy,
+                                      boolean optimize,
+                                      LoxEvents.Compile event) {
+        long start = System.nanoTime();
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+        long scanned = System.nanoTime();
+        Parser parser = new Parser(tokens, lazy);
         List<Stmt> statements = parser.parse();
+        interpreter.defer(parser.deferredBodies());
+        long parsed = System.nanoTime();
+
+        if (event != null) {
+          event.characters = source.text.length();
+          event.tokens = tokens.size();
+          event.statements = statements.size();
+          event.scanTime = scanned - start;
+          event.parseTime = parsed - scanned;
+          event.failed = hadError;
+        }
 
         // Stop if there was a syntax error.
         if (hadError) return null;
 
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
+        if (event != null) {
+          event.resolveTime = System.nanoTime() - parsed;
+          event.failed = hadError;
+        }
 
         // Stop if there was a resolution error.
         if (hadError) return null;
 
+        if (optimize) {
+          statements = optimize(statements, resolver, !lazy && !interactive);
+        }
+        if (memoize && !lazy && !interactive) findPureFunctions(statements);
         return statements;
     }
 
+    // The passes between the Resolver and the Interpreter. Bodies deferred by
+    // --lazy are parsed later and skip them. wholeProgram says no code
+    // outside these statements can touch their globals.
+    static List<Stmt> optimize(List<Stmt> statements,
+                               Resolver resolver,
+                               boolean wholeProgram) {
+        statements = new ConstantFolder(interpreter, resolver)
+            .transform(statements);
+        if (inline) {
+          statements = new Inliner(interpreter, resolver, wholeProgram)
+              .inline(statements);
+          // Inlined bodies often have literal arguments to fold.
+          statements = new ConstantFolder(interpreter, resolver)
+              .transform(statements);
+        }
+        // Last, since the passes above leave unread locals behind.
+        statements = new DeadCodeEliminator(interpreter, resolver)
+            .transform(statements);
+        TypeInferrer types = new TypeInferrer(interpreter, resolver);
+        statements = types.transform(statements);
+        if (showTypes) types.record();
+        // After everything else, which would otherwise have to know about
+        // the temporaries it adds.
+        statements = new LoopOptimizer(interpreter, resolver, wholeProgram)
+            .transform(statements);
+        return statements;
+    }
+
+    // Purity needs the whole program, so this isn't done with --lazy or at
+    // the prompt.
+    private static void findPureFunctions(List<Stmt> statements) {
+        interpreter.memoize(
+            new PurityAnalysis(interpreter).pureFunctions(statements));
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path profile = ProfileCache.pathFor(Paths.get(path));
+        if (compiler != null) {
+          compiler.warmUp(ProfileCache.load(profile, AstCache.hash(bytes)));
+        }
+        if (profileFile != null || allocationInterval > 0) {
+          interpreter.frames = new ShadowStack();
+        }
+        if (profileFile != null) sampler = new Sampler(interpreter.frames);
+        if (allocationInterval > 0) {
+          AllocationTracker.active =
+              new AllocationTracker(interpreter.frames, allocationInterval);
+        }
+        if (timings) interpreter.enableTimings();
+        if (heap) interpreter.enableHeap();
+        long start = System.nanoTime();
+        if (cache) {
+          runCached(Paths.get(path), bytes);
+        } else {
+          run(new String(bytes, Charset.defaultCharset()));
+        }
+        if (Metrics.active != null) {
+          Metrics.active.scripts.record(System.nanoTime() - start);
+        }
+        if (memoize) {
+          for (Memo memo : interpreter.memos()) System.err.println(memo);
+        }
+        if (OpCount.ENABLED) OpCount.report();
+        if (showTypes) System.err.println(TypeInferrer.coverage());
+        if (timings) interpreter.timer.print(System.err);
+        if (allocationInterval > 0) AllocationTracker.active.print(System.err);
+        if (profileFile != null) {
+          try {
+            sampler.write(profileFile);
+          } catch (IOException error) {
+            System.err.println("Could not write " + profileFile + ": " +
+                error.getMessage());
+          }
+        }
+        if (coverageFile != null && !hadError) {
+          try {
+            Coverage.active.write(coverageFile, Paths.get(path));
+          } catch (IOException error) {
+            System.err.println("Could not write " + coverageFile + ": " +
+                error.getMessage());
+          }
+        }
+        if (compiler != null && !hadError) {
+          try {
+            ProfileCache.store(profile, AstCache.hash(bytes), compiler.hot());
+          } catch (IOException error) {
+            // Warming up again next time is all this costs.
+            System.err.println("Could not write " + profile + ": " +
+                error.getMessage());
+          }
+        }
         // "Indicate an error in the exit code."
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    // Runs from the .loxc cache if it matches the source, otherwise runs the
+    // front end and refreshes the cache. The cache holds the whole tree, so
+    // --lazy doesn't apply here.
+    private static void runCached(Path script, byte[] bytes) {
+        Path cacheFile = AstCache.pathFor(script);
+        byte[] hash = AstCache.hash(bytes);
+        // Still needed on a hit, since error positions point into it.
+        Source source = new Source(new String(bytes, Charset.defaultCharset()));
+
+        // A tree built with other optimizations is a miss, not a stand-in.
+        boolean optimized = optimize && !check;
+        int flags = AstCache.flags(optimized, inline);
+        List<Stmt> statements =
+            AstCache.load(cacheFile, hash, flags, source, interpreter);
+        if (statements != null && memoize) findPureFunctions(statements);
+        if (statements == null) {
+          statements = compile(source, false, optimized);
+          if (statements == null) return;
+
+          try {
+            AstCache.store(cacheFile, hash, flags, statements, interpreter);
+          } catch (IOException error) {
+            // Not being able to write the cache shouldn't stop the script.
+            System.err.println("Could not write " + cacheFile + ": " +
+                error.getMessage());
+          }
+        }
+
+        if (check) return;
+        if (sampler != null) sampler.start();
+        interpreter.interpret(statements);
+    }
+
     // This part seems like it's just linking things. Telling the Readers what to read from.
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        interactive = true;
 
         // this seems like the part where you can write terminal lines that lox will read.
         for (;;) {
@@ -71,49 +397,68 @@ public class Lox {
         }
     }
     private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        // --check parses everything eagerly so errors in functions that are
+        // never called still get reported. --tiered needs every body parsed
+        // and resolved to optimize it later, and leaves optimizing till then.
+        List<Stmt> statements = compile(new Source(source),
+            lazy && !check && !tiered, optimize && !check && !tiered);
 
-        // Stop if there was a syntax error.
-        if (hadError) return;
+        // Stop if there was a syntax or resolution error.
+        if (statements == null) return;
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        if (check) return;
 
-        // Stop if there was a resolution error.
-        if (hadError) return;
+        if (Coverage.active != null) {
+          interpreter.covered = Coverage.active.start();
+        }
 
+        if (sampler != null) sampler.start();
         // for now, just returns to us the parsed syntax.
         interpreter.interpret(statements);
     }
 
     // The book says this part tells us which line errors occurred on.
-    static void error(int line, String message) {
-        report(line, "", message);
+    static void error(Source source, int offset, String message) {
+        report(source, offset, "", message);
     }
 
     static void runtimeError(RuntimeError error) {
         System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
+            "\n[" + location(error.token.source, error.token.offset) + "]");
         hadRuntimeError = true;
+        if (Metrics.active != null) Metrics.active.runtimeErrors.increment();
+
+        if (!LoxEvents.recording()) return;
+        LoxEvents.RuntimeError event = new LoxEvents.RuntimeError();
+        if (event.shouldCommit()) {
+          event.message = error.getMessage();
+          event.line = error.token.line();
+          event.column = error.token.column();
+          event.commit();
+        }
     }
 
-    private static void report(int line, String where,
+    private static void report(Source source, int offset, String where,
                                 String message) {
-        System.err.println(
-            "[line " + line + "] Error" + where + ": " + message);
+        System.err.println("[" + location(source, offset) + "] Error" +
+            where + ": " + message);
         hadError = true;
     }
 
+    // Lines and columns are only computed here, when something goes wrong.
+    private static String location(Source source, int offset) {
+        return "line " + source.line(offset) +
+            ", column " + source.column(offset);
+    }
+
     // Reports an error token by showing the token's location and what it is.
     static void error(Token token, String message) {
         // Unless it's the EOF token, then say that it's at end.
         if (token.type ==TokenType.EOF) {
-            report(token.line, " at end", message);
+            report(token.source, token.offset, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.source, token.offset, " at '" + token.lexeme + "'",
+                message);
         }
     }
 }
\ No newline at end of file
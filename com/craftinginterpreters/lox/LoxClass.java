@@ -16,6 +16,7 @@ class LoxClass implements LoxCallable {
   }
 
   LoxFunction findMethod(String name) {
+    if (OpCount.ENABLED) OpCount.methodLookups++;
     if (methods.containsKey(name)) {
       return methods.get(name);
     }
@@ -27,6 +28,10 @@ class LoxClass implements LoxCallable {
     return null;
   }
 
+  Map<String, LoxFunction> methods() {
+    return methods;
+  }
+
   @Override
   public String toString() {
     return name;
@@ -34,7 +39,25 @@ class LoxClass implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    CallTimer timer = interpreter.timer;
+    if (timer == null) return instantiate(interpreter, arguments);
+
+    // Includes the time in init(), which is also timed on its own.
+    timer.enter(this, name + "()");
+    try {
+      return instantiate(interpreter, arguments);
+    } finally {
+      timer.exit();
+    }
+  }
+
+  private Object instantiate(Interpreter interpreter,
+                             List<Object> arguments) {
     LoxInstance instance = new LoxInstance(this);
+    if (Metrics.active != null) Metrics.active.instances.increment();
+    if (AllocationTracker.active != null) {
+      AllocationTracker.active.allocated(AllocationTracker.Kind.INSTANCE);
+    }
     LoxFunction initializer = findMethod("init");
     if (initializer != null) {
       initializer.bind(instance).call(interpreter, arguments);
@@ -0,0 +1,121 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events for what a script does, so Lox shows up in the
+// same recording as the GC and the JIT:
+//   java -XX:StartFlightRecording=filename=lox.jfr ... Lox script.lox
+// Calls are only recorded above a threshold, one millisecond unless the
+// recording's settings say otherwise for lox.Call.
+//
+// Loading the first event class starts Flight Recorder, which costs a
+// couple of hundred milliseconds. So no event is made, or even loaded,
+// until recording() says Flight Recorder is already running, which only
+// reads a flag.
+//
+// The Java stack of an event only shows the interpreter, so they don't
+// record one.
+class LoxEvents {
+  private static final String CATEGORY = "Lox";
+
+  @Name("lox.Compile")
+  @Label("Compile")
+  @Description("Scanning, parsing and resolving a script, and optimizing it")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class Compile extends Event {
+    @Label("Characters")
+    int characters;
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Statements")
+    @Description("Top-level statements parsed")
+    int statements;
+
+    @Label("Scan Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long scanTime;
+
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+
+    @Label("Resolve Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long resolveTime;
+
+    @Label("Failed")
+    @Description("A syntax or resolution error stopped compilation")
+    boolean failed;
+  }
+
+  @Name("lox.Call")
+  @Label("Function Call")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  @Threshold("1 ms")
+  static class Call extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Line")
+    @Description("Where the function is declared")
+    int line;
+  }
+
+  @Name("lox.ClassDefinition")
+  @Label("Class Definition")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class ClassDefinition extends Event {
+    @Label("Class")
+    String name;
+
+    @Label("Superclass")
+    String superclass;
+
+    @Label("Methods")
+    int methods;
+
+    @Label("Line")
+    int line;
+  }
+
+  @Name("lox.RuntimeError")
+  @Label("Runtime Error")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  static class RuntimeError extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+
+    @Label("Column")
+    int column;
+  }
+
+  static boolean recording() {
+    return FlightRecorder.isInitialized();
+  }
+
+  static boolean recordingCalls() {
+    return recording() && Calls.EVENT.isEnabled();
+  }
+
+  // Only asked whether calls are being recorded. Loaded on first use.
+  private static class Calls {
+    static final Call EVENT = new Call();
+  }
+}
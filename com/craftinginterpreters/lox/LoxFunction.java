@@ -7,18 +7,38 @@ class LoxFunction implements LoxCallable {
   private final Environment closure;
 
   private final boolean isInitializer;
+  // Set when --memoize found the function to be pure.
+  private final Memo memo;
+  // Set with --tiered, to count calls and find the optimized body.
+  private final TieredCompiler.Profile profile;
 
   LoxFunction(Stmt.Function declaration, Environment closure,
          boolean isInitializer) {
+    this(declaration, closure, isInitializer, null, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment closure,
+         boolean isInitializer, Memo memo,
+         TieredCompiler.Profile profile) {
     this.isInitializer = isInitializer;
     this.closure = closure;
     this.declaration = declaration;
+    this.memo = memo;
+    this.profile = profile;
   }
 
   LoxFunction bind(LoxInstance instance) {
     Environment environment = new Environment(closure);
     environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    if (AllocationTracker.active != null) {
+      AllocationTracker.active.allocated(AllocationTracker.Kind.BOUND_METHOD);
+    }
+    return new LoxFunction(declaration, environment, isInitializer,
+        memo, profile);
+  }
+
+  Environment closure() {
+    return closure;
   }
 
   @Override
@@ -34,18 +54,80 @@ class LoxFunction implements LoxCallable {
   @Override
   public Object call(Interpreter interpreter,
                     List<Object> arguments) {
+    if (interpreter.frames == null && interpreter.timer == null &&
+        !LoxEvents.recordingCalls()) {
+      return callMemoized(interpreter, arguments);
+    }
+
+    ShadowStack frames = interpreter.frames;
+    CallTimer timer = interpreter.timer;
+    LoxEvents.Call event = new LoxEvents.Call();
+    if (frames != null) frames.push(declaration.name.lexeme);
+    if (timer != null) timer.enter(declaration, declaration.name.lexeme);
+    event.begin();
+    try {
+      return callMemoized(interpreter, arguments);
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.function = declaration.name.lexeme;
+        event.line = declaration.name.line();
+        event.commit();
+      }
+      if (timer != null) timer.exit();
+      if (frames != null) frames.pop();
+    }
+  }
+
+  private Object callMemoized(Interpreter interpreter,
+                              List<Object> arguments) {
+    if (memo == null || !Memo.accepts(arguments)) {
+      return invoke(interpreter, arguments);
+    }
+
+    Object result = memo.lookup(arguments);
+    if (result != Memo.MISSING) return result;
+
+    // A call that fails stores nothing, so the next one fails again.
+    result = invoke(interpreter, arguments);
+    memo.store(arguments, result);
+    return result;
+  }
+
+  private Object invoke(Interpreter interpreter, List<Object> arguments) {
+    // A body skipped by the lazy parser is empty until its first call.
+    if (declaration.deferred) interpreter.materialize(declaration);
+
     Environment environment = new Environment(closure);
     for (int i = 0; i < declaration.params.size(); i++) {
       environment.define(declaration.params.get(i).lexeme,
           arguments.get(i));
     }
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
+    if (profile == null) {
+      try {
+        interpreter.executeBlock(declaration.body, environment);
+      } catch (Return returnValue) {
+        if (isInitializer) return closure.getAt(0, "this");
+
+        return returnValue.value;
+      }
+    } else {
+      // Loops in the body count toward this function's profile.
+      TieredCompiler.Profile caller = interpreter.profile;
+      interpreter.profile = profile;
+      profile.invoked();
+      List<Stmt> body = profile.compiled();
+      if (body == null) body = declaration.body;
+      try {
+        interpreter.executeBlock(body, environment);
+      } catch (Return returnValue) {
+        if (isInitializer) return closure.getAt(0, "this");
 
-      return returnValue.value;
+        return returnValue.value;
+      } finally {
+        interpreter.profile = caller;
+      }
     }
 
     if (isInitializer) return closure.getAt(0, "this");
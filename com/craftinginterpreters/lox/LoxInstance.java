@@ -11,12 +11,21 @@ class LoxInstance {
     this.klass = klass;
   }
 
+  LoxClass klass() {
+    return klass;
+  }
+
+  Map<String, Object> fields() {
+    return fields;
+  }
+
   @Override
   public String toString() {
     return klass.name + " instance";
   }
 
   Object get(Token name) {
+    if (OpCount.ENABLED) OpCount.fieldLookups++;
     if (fields.containsKey(name.lexeme)) {
       return fields.get(name.lexeme);
     }
@@ -30,6 +39,7 @@ class LoxInstance {
   }
 
   void set(Token name, Object value) {
+    if (OpCount.ENABLED) OpCount.fieldLookups++;
     fields.put(name.lexeme, value);
   }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The results of one pure function, keyed by its arguments, for --memoize.
+// Holds at most CAPACITY results and evicts the least recently used one
+// to make room for another.
+class Memo {
+  static final int CAPACITY = 10000;
+  // Returned by lookup() when there's no result, since nil is a result.
+  static final Object MISSING = new Object();
+
+  final String name;
+  int hits = 0;
+  int misses = 0;
+  int evictions = 0;
+
+  private final Map<List<Object>, Object> results =
+      new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<Object>, Object> eldest) {
+          if (size() <= CAPACITY) return false;
+          evictions++;
+          return true;
+        }
+      };
+
+  Memo(String name) {
+    this.name = name;
+  }
+
+  // Only values compared by equality make usable keys. An instance argument
+  // could also have its fields changed between calls.
+  static boolean accepts(List<Object> arguments) {
+    for (Object argument : arguments) {
+      if (argument != null && !(argument instanceof Double) &&
+          !(argument instanceof String) && !(argument instanceof Boolean)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  Object lookup(List<Object> arguments) {
+    Object result = results.get(arguments);
+    if (result == null && !results.containsKey(arguments)) {
+      misses++;
+      return MISSING;
+    }
+
+    hits++;
+    return result;
+  }
+
+  void store(List<Object> arguments, Object result) {
+    results.put(arguments, result);
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + hits + " hits, " + misses + " misses, " +
+        evictions + " evicted";
+  }
+}
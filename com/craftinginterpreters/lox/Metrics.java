@@ -0,0 +1,151 @@
+package com.craftinginterpreters.lox;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Running totals for operating jlox as a long-lived worker, for --metrics or
+// --metrics=PORT. They're registered as an MBean, and with a port they're
+// also served in Prometheus's text format from
+// http://localhost:PORT/metrics for as long as the script runs.
+//
+// Unlike OpCount, these may be read while they're being counted, by
+// however many interpreter threads there are. A LongAdder spreads its
+// increments over cells so those threads don't fight over one cache line.
+class Metrics implements MetricsMBean {
+  private static final String NAME =
+      "com.craftinginterpreters.lox:type=Metrics";
+
+  // Null unless --metrics is on, so each hook costs one field check.
+  static Metrics active = null;
+
+  final LongAdder statements = new LongAdder();
+  final LongAdder calls = new LongAdder();
+  final LongAdder instances = new LongAdder();
+  final LongAdder environments = new LongAdder();
+  final LongAdder runtimeErrors = new LongAdder();
+  // How long each script took to run, in nanoseconds.
+  final LatencyHistogram scripts = new LatencyHistogram();
+
+  private HttpServer server = null;
+
+  static void start(int port) throws IOException {
+    Metrics metrics = new Metrics();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(metrics, MetricsMBean.class),
+          new ObjectName(NAME));
+    } catch (JMException error) {
+      throw new IOException("Could not register " + NAME, error);
+    }
+
+    if (port != 0) metrics.serve(port);
+    active = metrics;
+  }
+
+  // Only from this machine. The server's thread isn't a daemon, so it has
+  // to be stopped for the JVM to exit.
+  private void serve(int port) throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type",
+          "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+  }
+
+  void stop() {
+    if (server != null) server.stop(0);
+  }
+
+  String prometheus() {
+    StringBuilder text = new StringBuilder();
+    counter(text, "lox_statements_total", "Statements executed.",
+        getStatements());
+    counter(text, "lox_calls_total", "Calls to functions and classes.",
+        getCalls());
+    counter(text, "lox_instances_total", "Instances created.",
+        getInstances());
+    counter(text, "lox_environments_total", "Environments created.",
+        getEnvironments());
+    counter(text, "lox_runtime_errors_total", "Runtime errors reported.",
+        getRuntimeErrors());
+
+    String name = "lox_script_duration_seconds";
+    text.append("# HELP ").append(name)
+        .append(" How long each script took to run.\n");
+    text.append("# TYPE ").append(name).append(" summary\n");
+    for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+      // Prometheus's way of saying there's nothing to take a quantile of.
+      String value = getScripts() == 0 ? "NaN"
+          : String.valueOf(scripts.percentile(quantile) / 1e9);
+      text.append(name).append("{quantile=\"").append(quantile)
+          .append("\"} ").append(value).append('\n');
+    }
+    text.append(name).append("_sum ").append(getScriptSecondsTotal())
+        .append('\n');
+    text.append(name).append("_count ").append(getScripts()).append('\n');
+    return text.toString();
+  }
+
+  private static void counter(StringBuilder text, String name, String help,
+                              long value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  @Override
+  public long getStatements() {
+    return statements.sum();
+  }
+
+  @Override
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  @Override
+  public long getInstances() {
+    return instances.sum();
+  }
+
+  @Override
+  public long getEnvironments() {
+    return environments.sum();
+  }
+
+  @Override
+  public long getRuntimeErrors() {
+    return runtimeErrors.sum();
+  }
+
+  @Override
+  public long getScripts() {
+    return scripts.count();
+  }
+
+  @Override
+  public double getScriptSecondsTotal() {
+    return scripts.total() / 1e9;
+  }
+
+  @Override
+  public double getScriptSecondsP99() {
+    return scripts.percentile(0.99) / 1e9;
+  }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+// What Metrics shows over JMX, as com.craftinginterpreters.lox:type=Metrics.
+// JMX only looks at public interfaces.
+public interface MetricsMBean {
+  long getStatements();
+  long getCalls();
+  long getInstances();
+  long getEnvironments();
+  long getRuntimeErrors();
+  long getScripts();
+  double getScriptSecondsTotal();
+  double getScriptSecondsP99();
+}
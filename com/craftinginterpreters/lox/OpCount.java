@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Counts units of work instead of timing them, so two runs of the same
+// script give the same numbers on any machine. Turned on by naming a file
+// for the report when starting the JVM:
+//   java -Dlox.opcount=counts.txt com.craftinginterpreters.lox.Lox script.lox
+// A report of "-" goes to stderr. When the property isn't set, ENABLED is a
+// constant false and the JIT drops every "if (OpCount.ENABLED)" along with
+// the counting behind it.
+//
+// Counts only repeat exactly without --tiered, which switches to optimized
+// code whenever the compiler thread gets to it.
+//
+// The report has one "name count" line per counter, always the same ones in
+// the same order. Comparing one against a baseline flags the counters that
+// went up by more than a tolerance, and exits with 1 if any did:
+//   java com.craftinginterpreters.lox.OpCount baseline.txt counts.txt [percent]
+class OpCount {
+  private static final String REPORT = System.getProperty("lox.opcount");
+  static final boolean ENABLED = REPORT != null;
+
+  // Only the interpreter's own thread counts, so plain longs do.
+  static final long[] exprs = new long[Expr.KINDS];
+  static final long[] stmts = new long[Stmt.KINDS];
+  static long calls = 0;
+  static long environments = 0;
+  static long fieldLookups = 0;
+  // One for each class searched, so a method found on a superclass two
+  // levels up counts three.
+  static long methodLookups = 0;
+
+  private static Map<String, Long> counts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    counts.put("calls", calls);
+    counts.put("environments", environments);
+    counts.put("field_lookups", fieldLookups);
+    counts.put("method_lookups", methodLookups);
+    for (int kind = 0; kind < Expr.KINDS; kind++) {
+      counts.put("expr." + Expr.NAMES[kind], exprs[kind]);
+    }
+    for (int kind = 0; kind < Stmt.KINDS; kind++) {
+      counts.put("stmt." + Stmt.NAMES[kind], stmts[kind]);
+    }
+    return counts;
+  }
+
+  static void report() {
+    StringBuilder report = new StringBuilder();
+    for (Map.Entry<String, Long> count : counts().entrySet()) {
+      report.append(count.getKey()).append(' ').append(count.getValue())
+          .append('\n');
+    }
+
+    if (REPORT.equals("-")) {
+      System.err.print(report);
+      return;
+    }
+
+    try {
+      Files.write(Paths.get(REPORT),
+          report.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException error) {
+      System.err.println("Could not write " + REPORT + ": " +
+          error.getMessage());
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.out.println("Usage: OpCount <baseline> <report> [percent]");
+      System.exit(64);
+    }
+
+    Map<String, Long> baseline = read(args[0]);
+    Map<String, Long> current = read(args[1]);
+    double tolerance = args.length == 3 ? Double.parseDouble(args[2]) : 0;
+
+    int increases = 0;
+    for (Map.Entry<String, Long> count : current.entrySet()) {
+      String name = count.getKey();
+      long now = count.getValue();
+      Long before = baseline.get(name);
+
+      // A counter the baseline didn't have, or had at zero.
+      if (before == null || before == 0) {
+        if (now == 0) continue;
+        System.out.println(name + ": 0 -> " + now);
+        increases++;
+        continue;
+      }
+
+      if (now <= before) continue;
+      double percent = 100.0 * (now - before) / before;
+      if (percent <= tolerance) continue;
+
+      System.out.printf(Locale.ROOT, "%s: %d -> %d (+%.2f%%)%n", name,
+          before, now, percent);
+      increases++;
+    }
+
+    if (increases > 0) System.exit(1);
+    System.out.println("No counts went up.");
+  }
+
+  private static Map<String, Long> read(String path) throws IOException {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    List<String> lines = Files.readAllLines(Paths.get(path),
+        StandardCharsets.UTF_8);
+    for (String line : lines) {
+      if (line.isBlank()) continue;
+      String[] parts = line.trim().split(" ");
+      counts.put(parts[0], Long.parseLong(parts[1]));
+    }
+    return counts;
+  }
+}
@@ -2,7 +2,9 @@ package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
@@ -10,12 +12,54 @@ class Parser {
   // If we found an error, this is how we return to parsing instead of stopping altogether.
   private static class ParseError extends RuntimeException {}
 
+  // Binding powers for the binary operators, indexed by TokenType ordinal.
+  // Zero means the token isn't a binary operator and ends the expression.
+  private static final int PREC_OR = 1;
+  private static final int PREC_AND = 2;
+  private static final int PREC_EQUALITY = 3;
+  private static final int PREC_COMPARISON = 4;
+  private static final int PREC_TERM = 5;
+  private static final int PREC_FACTOR = 6;
+  private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+  static {
+    PRECEDENCE[OR.ordinal()] = PREC_OR;
+    PRECEDENCE[AND.ordinal()] = PREC_AND;
+    PRECEDENCE[BANG_EQUAL.ordinal()] = PREC_EQUALITY;
+    PRECEDENCE[EQUAL_EQUAL.ordinal()] = PREC_EQUALITY;
+    PRECEDENCE[GREATER.ordinal()] = PREC_COMPARISON;
+    PRECEDENCE[GREATER_EQUAL.ordinal()] = PREC_COMPARISON;
+    PRECEDENCE[LESS.ordinal()] = PREC_COMPARISON;
+    PRECEDENCE[LESS_EQUAL.ordinal()] = PREC_COMPARISON;
+    PRECEDENCE[MINUS.ordinal()] = PREC_TERM;
+    PRECEDENCE[PLUS.ordinal()] = PREC_TERM;
+    PRECEDENCE[SLASH.ordinal()] = PREC_FACTOR;
+    PRECEDENCE[STAR.ordinal()] = PREC_FACTOR;
+  }
+
+  // How deep the tree being built is. Past the limit we report an error
+  // instead of overflowing the Java stack, here or in the passes after us,
+  // which all walk the tree recursively. So every level counts, even the
+  // ones parsed with a loop: operators, prefixes, calls and gets. Lox runs
+  // them on a thread with a stack sized for this, see Lox.STACK_SIZE.
+  static final int MAX_DEPTH = 5000;
+  private int depth = 0;
+
   private final List<Token> tokens;
   // keeps track of which token we're on.
   private int current = 0;
 
+  // In lazy mode function bodies are only brace-matched, and parsed on first call.
+  private final boolean lazy;
+  private final Map<Stmt.Function, DeferredBody> deferred = new HashMap<>();
+
   Parser(List<Token> tokens) {
+    this(tokens, false);
+  }
+
+  Parser(List<Token> tokens, boolean lazy) {
     this.tokens = tokens;
+    this.lazy = lazy;
   }
 
 
@@ -28,19 +72,48 @@ class Parser {
     return statements;
   }
 
+  // Parses a body skipped in lazy mode, starting just after its '{'.
+  List<Stmt> parseBody(int start) {
+    current = start;
+    try {
+      return block();
+    } catch (ParseError error) {
+      return new ArrayList<>();
+    }
+  }
+
+  // The bodies skipped so far, keyed by the function they belong to.
+  Map<Stmt.Function, DeferredBody> deferredBodies() {
+    return deferred;
+  }
 
   private Expr expression() {
-    return assignment();
+    // Groupings and call arguments come back through here.
+    nest(1);
+    Expr expr = assignment();
+    depth--;
+    return expr;
+  }
+
+  // Counts levels of the tree the caller is about to build, which it gives
+  // back when it's done.
+  private void nest(int levels) {
+    depth += levels;
+    if (depth > MAX_DEPTH) {
+      throw error(peek(), "Expression nesting is too deep.");
+    }
   }
 
   private Stmt declaration() {
     try {
       if (match(CLASS)) return classDeclaration();
       if (match(FUN)) return function("function");
-      if (match(VAR)) return varDeclaration();
+      if (match(VAR)) return varDeclaration(false);
+      if (match(CONST)) return varDeclaration(true);
 
       return statement();
     } catch (ParseError error) {
+      depth = 0;
       synchronize();
       return null;
     }
@@ -84,13 +157,14 @@ class Parser {
   } */
 
   private Stmt forStatement() {
+    Token keyword = previous();
     consume(LEFT_PAREN, "expect '(' after 'for'.");
 
     Stmt initializer;
     if (match(SEMICOLON)) {
       initializer = null;
     } else if (match(VAR)) {
-      initializer = varDeclaration();
+      initializer = varDeclaration(false);
     } else {
       initializer = expressionStatement();
     }
@@ -116,7 +190,7 @@ class Parser {
     }
 
     if (condition == null) condition = new Expr.Literal(true);
-    body = new Stmt.While(condition, body);
+    body = new Stmt.While(keyword, condition, body);
 
     if (initializer != null) {
       body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -126,6 +200,7 @@ class Parser {
   }
 
   private Stmt ifStatement() {
+    Token keyword = previous();
     consume(LEFT_PAREN, "Expect '(' after 'if'.)");
     Expr condition = expression();
     consume(RIGHT_PAREN, "Expect ')' after if condition.");
@@ -136,13 +211,14 @@ class Parser {
       elseBranch = statement();
     }
 
-    return new Stmt.If(condition, thenBranch, elseBranch);
+    return new Stmt.If(keyword, condition, thenBranch, elseBranch);
   }
 
   private Stmt printStatement() {
+    Token keyword = previous();
     Expr value = expression();
     consume(SEMICOLON, "Expect ';' after value.");
-    return new Stmt.Print(value);
+    return new Stmt.Print(keyword, value);
   }
 
   private Stmt returnStatement() {
@@ -156,25 +232,30 @@ class Parser {
     return new Stmt.Return(keyword, value);
   }
 
-  private Stmt varDeclaration() {
+  private Stmt varDeclaration(boolean isConst) {
     Token name = consume(IDENTIFIER, "Expect variable name.");
 
     Expr initializer = null;
-    if (match(EQUAL)) {
+    if (isConst) {
+      // A constant can't be given its value later.
+      consume(EQUAL, "Expect '=' after constant name.");
+      initializer = expression();
+    } else if (match(EQUAL)) {
       initializer = expression();
     }
 
     consume(SEMICOLON, "Expect ';' after variable declaration.");
-    return new Stmt.Var(name, initializer);
+    return new Stmt.Var(name, initializer, isConst);
   }
 
   private Stmt whileStatement() {
+    Token keyword = previous();
     consume(LEFT_PAREN, "Expect '(' after 'while'.");
     Expr condition = expression();
     consume(RIGHT_PAREN, "expect ')' after condition.");
     Stmt body = statement();
 
-    return new Stmt.While(condition, body);
+    return new Stmt.While(keyword, condition, body);
   }
 
   private Stmt expressionStatement() {
@@ -200,10 +281,36 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
     consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+    if (lazy) {
+      int start = current;
+      skipBlock();
+      // The body list gets filled in when the function is first called.
+      Stmt.Function function =
+          new Stmt.Function(name, parameters, new ArrayList<>());
+      function.deferred = true;
+      deferred.put(function, new DeferredBody(tokens, start));
+      return function;
+    }
+
     List<Stmt> body = block();
     return new Stmt.Function(name, parameters, body);
   }
 
+  // Steps over a block without parsing it, stopping after the matching '}'.
+  private void skipBlock() {
+    int braces = 1;
+    while (!isAtEnd()) {
+      TokenType type = advance().type;
+      if (type == LEFT_BRACE) {
+        braces++;
+      } else if (type == RIGHT_BRACE && --braces == 0) {
+        return;
+      }
+    }
+
+    throw error(peek(), "Expect '}' after block.");
+  }
+
   private List<Stmt> block() {
     List<Stmt> statements = new ArrayList<>();
     
@@ -216,11 +323,13 @@ class Parser {
   }
 
   private Expr assignment() {
-    Expr expr = or();
+    Expr expr = binary(PREC_OR);
 
     if (match(EQUAL)) {
       Token equals = previous();
+      nest(1);
       Expr value = assignment();
+      depth--;
 
       if (expr instanceof Expr.Variable) {
         Token name = ((Expr.Variable)expr).name;
@@ -236,112 +345,64 @@ class Parser {
     return expr;
   }
 
-  private Expr or() {
-    Expr expr = and();
-
-    while (match(OR)) {
-      Token operator = previous();
-      Expr right = and();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr and() {
-    Expr expr = equality();
-
-    while (match(AND)) {
-      Token operator = previous();
-      Expr right = equality();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr equality() {
-    Expr expr = comparison();
-
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    // ship it back.
-    return expr;
-  }
-
-  private Expr comparison() {
-  // Check if term function cares about our token.
-    Expr expr = term();
-
-    // Handles the specific tokens > >= < and <=.
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = term();
-      // Composes a new binary expression using previous expression, current operator, and right termed.
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    // Ships back parsed expression.
-    return expr;
-  }
-
-  private Expr term() {
-    //check if factor function cares about our token.
-    Expr expr = factor();
-
-    // This function cares about only the - and + tokens.
-    while (match(MINUS, PLUS)) {
-      Token operator = previous();
-      Expr right = factor();
-      // Figures out the parsed expression using the expression, operator, and factored right.
-      expr = new Expr.Binary(expr, operator, right);
-    }
-  
-    // Ships back parsed expression.
-    return expr;
-  }
-
-  private Expr factor() {
-    // Check if unary function cares about our token.
+  // Precedence climbing over the binary operators. Each operator's binding
+  // power comes from the table above, so an operand costs one call here
+  // instead of one per grammar level. Operators at the same level loop to the
+  // left; only a tighter operator on the right recurses, so the depth is
+  // bounded by the number of levels, not the length of the expression.
+  private Expr binary(int minPrecedence) {
     Expr expr = unary();
+    int levels = 0;
 
-    //This function cares only about the / and * tokens.
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      // for / and * tokens, the next token should be unary.
-      Expr right = unary();
-      // Creates a parsed expression using previous expression, / or *, and calculated right unary.
-      expr = new Expr.Binary(expr, operator, right);
+    while (true) {
+      int precedence = PRECEDENCE[peek().type.ordinal()];
+      if (precedence < minPrecedence) break;
+
+      Token operator = advance();
+      // The operators so far are nested to the left.
+      nest(1);
+      levels++;
+      Expr right = binary(precedence + 1);
+      if (operator.type == OR || operator.type == AND) {
+        expr = new Expr.Logical(expr, operator, right);
+      } else {
+        expr = new Expr.Binary(expr, operator, right);
+      }
     }
 
-    // Ships back parsed expression.
+    depth -= levels;
     return expr;
   }
 
   private Expr unary() {
-    // This function cares only about ! and - tokens.
-    if (match(BANG, MINUS)) {
-      Token operator = previous();
-      Expr right = unary();
-      // Creates a parsed expression using operator and calculated right unary.
-      return new Expr.Unary(operator, right);
+    // Prefix operators are right-nested, so collect the whole run and build
+    // the Unary nodes from the inside out instead of recursing once per '!' or '-'.
+    int first = current;
+    while (check(BANG) || check(MINUS)) advance();
+    int last = current;
+    nest(last - first);
+
+    Expr expr = call();
+    for (int i = last - 1; i >= first; i--) {
+      expr = new Expr.Unary(tokens.get(i), expr);
     }
+    depth -= last - first;
 
-    // send result to primary function.
-    return call();
+    return expr;
   }
 
   private Expr call() {
     Expr expr = primary();
+    int levels = 0;
 
     while (true) {
       if (match(LEFT_PAREN)) {
+        nest(1);
+        levels++;
         expr = finishCall(expr);
       } else if (match(DOT)) {
+        nest(1);
+        levels++;
         Token name = consume(IDENTIFIER,
         "Expect property name after '.'.");
         expr = new Expr.Get(expr, name);
@@ -350,6 +411,7 @@ class Parser {
       }
     }
 
+    depth -= levels;
     return expr;
   }
 
@@ -376,7 +438,7 @@ class Parser {
     if (match(NIL)) return new Expr.Literal(null);
 
     // For numbers and strings, keep using the number or string literal until the number or string is over.
-    if (match(NUMBER, STRING)) {
+    if (match(NUMBER) || match(STRING)) {
       return new Expr.Literal(previous().literal);
     }
 
@@ -394,23 +456,22 @@ class Parser {
     }
 
     if (match(LEFT_PAREN)) {
-    Expr expr = expression();
-    // If we found a ( but didn't find a ), then that's an error.
-    consume(RIGHT_PAREN, "Expect ')' after expression.");
-    return new Expr.Grouping(expr);
+      Expr expr = expression();
+      // If we found a ( but didn't find a ), then that's an error.
+      consume(RIGHT_PAREN, "Expect ')' after expression.");
+      return new Expr.Grouping(expr);
     }
 
     // If no cases match token, token can't start expression. This is that error.
     throw error(peek(), "Expect expression.");
   }
 
-  private boolean match(TokenType... types) {
+  // Takes a single type so probing doesn't allocate a varargs array.
+  private boolean match(TokenType type) {
     // If the Token type is recognized, consume it and say true.
-    for (TokenType type: types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
+    if (check(type)) {
+      advance();
+      return true;
     }
     // If the token type does not exist, say false.
     return false;
@@ -470,6 +531,7 @@ class Parser {
         case CLASS:
         case FUN:
         case VAR:
+        case CONST:
         case FOR:
         case IF:
         case WHILE:
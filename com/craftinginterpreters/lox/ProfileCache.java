@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Remembers which functions and loops got hot under --tiered, in a .loxp
+// file next to the script, so the next run of the same source compiles them
+// as soon as they first run instead of warming up again. Like the .loxc
+// cache, the file starts with a SHA-256 of the source and is ignored when
+// that doesn't match.
+//
+// Code is identified by the order the Resolver registered it with the
+// TieredCompiler in, which is the same every time for the same source.
+class ProfileCache {
+  private static final int MAGIC = 0x4c4f5850; // "LOXP"
+  private static final int VERSION = 1;
+
+  // foo.lox is profiled in foo.loxp next to it.
+  static Path pathFor(Path script) {
+    String name = script.getFileName().toString();
+    if (name.endsWith(".lox")) return script.resolveSibling(name + "p");
+    return script.resolveSibling(name + ".loxp");
+  }
+
+  // Returns the hot code's positions in registration order, or an empty set
+  // if there's no usable profile for this source.
+  static Set<Integer> load(Path file, byte[] hash) {
+    Set<Integer> hot = new HashSet<>();
+    if (!Files.isRegularFile(file)) return hot;
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return hot;
+
+      byte[] stored = new byte[hash.length];
+      in.readFully(stored);
+      if (!Arrays.equals(stored, hash)) return hot;
+
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) hot.add(in.readInt());
+      return hot;
+    } catch (IOException | RuntimeException error) {
+      // A truncated or corrupt profile just means warming up again.
+      return new HashSet<>();
+    }
+  }
+
+  // Written the same way as AstCache.store(), so concurrent runs of the
+  // same script never see a half-written profile.
+  static void store(Path file, byte[] hash, Set<Integer> hot)
+      throws IOException {
+    Path temp = Files.createTempFile(
+        file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(hash);
+        out.writeInt(hot.size());
+        for (int position : hot) out.writeInt(position);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the top-level functions whose result depends only on their
+// arguments, so calling one again with the same arguments can return the
+// remembered result. A function is pure when its body:
+//
+// * Reads only its own parameters and locals, and assigns only those.
+// * Calls only pure functions, by the global name they're declared under.
+// * Prints nothing, and doesn't touch fields, 'this', 'super' or classes.
+// * Declares no functions, since a closure is a new object on every call.
+//
+// Natives like clock() aren't declared in the script, so calling one makes
+// a function impure. Calls are checked together, so functions that call
+// each other are pure unless one of them does something impure.
+//
+// This only looks at depths, not the Resolver's bindings, so it works on a
+// tree loaded from the AST cache too. It must see the whole program, since a
+// global a function calls could otherwise be replaced behind its back.
+class PurityAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private final Interpreter interpreter;
+  // How often each global is declared, and which are ever assigned.
+  private final Map<String, Integer> declarations = new HashMap<>();
+  private final Set<String> assignedGlobals = new HashSet<>();
+
+  // The function being checked, or null while just scanning for
+  // assignments to globals.
+  private Stmt.Function function = null;
+  private boolean pure;
+  private Set<String> callees;
+
+  PurityAnalysis(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Set<Stmt.Function> pureFunctions(List<Stmt> statements) {
+    Map<Stmt.Function, Set<String>> candidates = new LinkedHashMap<>();
+    for (Stmt statement : statements) {
+      Token name = null;
+      if (statement instanceof Stmt.Var) name = ((Stmt.Var)statement).name;
+      if (statement instanceof Stmt.Class) name = ((Stmt.Class)statement).name;
+
+      if (statement instanceof Stmt.Function) {
+        function = (Stmt.Function)statement;
+        name = function.name;
+        pure = true;
+        callees = new HashSet<>();
+        scan(function.body);
+        if (pure) candidates.put(function, callees);
+        function = null;
+      } else {
+        scan(statement);
+      }
+
+      if (name != null) declarations.merge(name.lexeme, 1, Integer::sum);
+    }
+
+    Map<String, Stmt.Function> found = new LinkedHashMap<>();
+    for (Stmt.Function candidate : candidates.keySet()) {
+      String name = candidate.name.lexeme;
+      if (declarations.get(name) == 1 && !assignedGlobals.contains(name)) {
+        found.put(name, candidate);
+      }
+    }
+
+    // Drop functions calling anything impure until none do.
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Stmt.Function candidate : candidates.keySet()) {
+        String name = candidate.name.lexeme;
+        if (found.get(name) != candidate) continue;
+
+        for (String callee : candidates.get(candidate)) {
+          if (!found.containsKey(callee)) {
+            found.remove(name);
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+
+    return new LinkedHashSet<>(found.values());
+  }
+
+  private void scan(Stmt stmt) {
+    if (stmt != null) stmt.accept(this);
+  }
+
+  private void scan(Expr expr) {
+    if (expr != null) expr.accept(this);
+  }
+
+  private void scan(List<Stmt> statements) {
+    for (Stmt statement : statements) scan(statement);
+  }
+
+  private void impure() {
+    pure = false;
+  }
+
+  private boolean isGlobal(Expr expr) {
+    return interpreter.localDepth(expr) == null;
+  }
+
+  @Override
+  public Void visitArithmeticExpr(Expr.Arithmetic expr) {
+    scan(expr.left);
+    scan(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    scan(expr.value);
+    if (isGlobal(expr)) {
+      assignedGlobals.add(expr.name.lexeme);
+      impure();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    scan(expr.left);
+    scan(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    if (function != null && expr.callee instanceof Expr.Variable &&
+        isGlobal(expr.callee)) {
+      callees.add(((Expr.Variable)expr.callee).name.lexeme);
+    } else {
+      // Only a global function is known well enough. A local can't hold
+      // one, since it would have come from an argument or a global read.
+      scan(expr.callee);
+      impure();
+    }
+
+    for (Expr argument : expr.arguments) scan(argument);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    scan(expr.object);
+    impure();
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    scan(expr.expression);
+    return null;
+  }
+
+  // The temporary is a local of the function the loop is in.
+  @Override
+  public Void visitHoistedExpr(Expr.Hoisted expr) {
+    scan(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    scan(expr.left);
+    scan(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitNegateExpr(Expr.Negate expr) {
+    scan(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    scan(expr.object);
+    scan(expr.value);
+    impure();
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    impure();
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    impure();
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    scan(expr.right);
+    return null;
+  }
+
+  // Nested functions are ruled out, so any local is the function's own.
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (isGlobal(expr)) impure();
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    scan(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    impure();
+    scan(stmt.superclass);
+    for (Stmt.Function method : stmt.methods) scan(method.body);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    scan(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    impure();
+    scan(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    scan(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    scan(stmt.condition);
+    scan(stmt.thenBranch);
+    scan(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    scan(stmt.expression);
+    impure();
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    scan(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    scan(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    scan(stmt.condition);
+    scan(stmt.body);
+    return null;
+  }
+}
@@ -1,38 +1,132 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Stack<Map<String, Binding>> scopes = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
+  // How many functions deep we are, to spot locals used from inner functions.
+  private int functionDepth = 0;
+
+  // The binding each local Variable and Assign resolved to, and the binding
+  // each local declaration introduced. Globals have no entry. The optimizer
+  // passes use these to tell which locals are constant, dead or captured.
+  private final Map<Expr, Binding> uses = new HashMap<>();
+  private final Map<Stmt, Binding> declarations = new HashMap<>();
+  // Names of globals assigned anywhere after their declaration.
+  private final Set<String> assignedGlobals = new HashSet<>();
+  // Assignments to globals that may yet turn out to be constants declared
+  // further down, checked once the whole program has been resolved.
+  private final List<Token> globalAssignments = new ArrayList<>();
 
   Resolver(Interpreter interpreter) {
     this.interpreter = interpreter;
   }
 
-  private enum FunctionType {
+  enum FunctionType {
     NONE,
     FUNCTION,
     INITIALIZER,
     METHOD
   }
 
-  private enum ClassType {
+  enum ClassType {
     NONE,
     CLASS,
     SUBCLASS
   }
 
+  // One local variable: a var, fun or class declared in a block or function,
+  // a parameter, or the implicit 'this' and 'super'.
+  static class Binding {
+    final Token name;
+    // The Stmt.Var, Stmt.Function or Stmt.Class that declared it, or null.
+    final Stmt declaration;
+    final int function;
+    boolean defined = false;
+    int reads = 0;
+    int writes = 0;
+    // Used from a function nested inside the one that declared it.
+    boolean captured = false;
+    // Visible to a lazily parsed body, which may use it in ways we can't see yet.
+    boolean escaped = false;
+    // Declared with const, so nothing can assign it, seen or not.
+    final boolean isConst;
+
+    Binding(Token name, Stmt declaration, int function) {
+      this.name = name;
+      this.declaration = declaration;
+      this.function = function;
+      this.isConst = declaration instanceof Stmt.Var &&
+          ((Stmt.Var)declaration).isConst;
+    }
+
+    boolean neverAssigned() {
+      return isConst || writes == 0 && !escaped;
+    }
+
+    boolean neverRead() {
+      return reads == 0 && !escaped;
+    }
+  }
+
+  Binding binding(Expr use) {
+    return uses.get(use);
+  }
+
+  Binding binding(Stmt declaration) {
+    return declarations.get(declaration);
+  }
+
+  boolean globalAssigned(String name) {
+    return assignedGlobals.contains(name);
+  }
+
+  // Lets a pass that replaces a node keep what was learned about the original.
+  void copyBinding(Expr from, Expr to) {
+    Binding binding = uses.get(from);
+    if (binding != null) uses.put(to, binding);
+  }
+
+  void copyBinding(Stmt from, Stmt to) {
+    Binding binding = declarations.get(from);
+    if (binding != null) declarations.put(to, binding);
+  }
+
   private ClassType currentClass = ClassType.NONE;
 
   void resolve (List<Stmt> statements) {
+    boolean program = scopes.isEmpty();
     for (Stmt statement : statements) {
       resolve(statement);
     }
+    if (program) checkGlobalAssignments();
+  }
+
+  // Resolves a lazily parsed body against the scopes captured when the
+  // function's declaration was resolved.
+  void resolveDeferred(Stmt.Function function, DeferredBody deferred,
+                       List<Stmt> body) {
+    scopes.addAll(deferred.scopes);
+    currentClass = deferred.classType;
+    resolveFunctionBody(function.params, body, deferred.functionType);
+    checkGlobalAssignments();
+  }
+
+  private void checkGlobalAssignments() {
+    for (Token name : globalAssignments) {
+      if (interpreter.isConstant(name.lexeme)) {
+        Lox.error(name, "Can't assign to a constant.");
+      }
+    }
+    globalAssignments.clear();
   }
 
   @Override
@@ -48,7 +142,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     define(stmt.name);
 
     if (stmt.superclass != null &&
@@ -64,11 +158,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     if (stmt.superclass != null) {
       beginScope();
-      scopes.peek().put("super", true);
+      putImplicit("super");
     }
 
     beginScope();
-    scopes.peek().put("this", true);
+    putImplicit("this");
 
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
@@ -96,13 +190,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
   }
 
+  // Hoisting happens after resolution, so these only come back through here
+  // if a transformed tree is resolved again.
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    resolve(stmt.expression);
+    return null;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     resolve(stmt.condition);
@@ -137,7 +239,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -149,13 +251,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitWhileStmt(Stmt.While stmt) {
     resolve(stmt.condition);
     resolve(stmt.body);
+    if (functionDepth == 0) {
+      interpreter.resolveLoop(stmt, this, scopes.isEmpty());
+    }
     return null;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    Binding binding = resolveLocal(expr, expr.name);
+    if (binding != null) {
+      if (binding.isConst) Lox.error(expr.name, "Can't assign to a constant.");
+      binding.writes++;
+    } else {
+      assignedGlobals.add(expr.name.lexeme);
+      globalAssignments.add(expr.name);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitArithmeticExpr(Expr.Arithmetic expr) {
+    resolve(expr.left);
+    resolve(expr.right);
     return null;
   }
 
@@ -189,6 +308,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitHoistedExpr(Expr.Hoisted expr) {
+    resolve(expr.temp);
+    resolve(expr.expression);
+    return null;
+  }
+
   @Override
   public Void visitLiteralExpr(Expr.Literal expr) {
     return null;
@@ -231,6 +357,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitNegateExpr(Expr.Negate expr) {
+    resolve(expr.right);
+    return null;
+  }
+
   @Override
   public Void visitUnaryExpr(Expr.Unary expr) {
     resolve(expr.right);
@@ -239,17 +371,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() &&
-    scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name,
-      "Can't read local variable in its own initializer.");
+    if (!scopes.isEmpty()) {
+      Binding local = scopes.peek().get(expr.name.lexeme);
+      if (local != null && !local.defined) {
+        Lox.error(expr.name,
+        "Can't read local variable in its own initializer.");
+      }
     }
 
-    resolveLocal(expr, expr.name);
+    Binding binding = resolveLocal(expr, expr.name);
+    if (binding != null) binding.reads++;
     return null;
   }
 
   private void resolve (Stmt stmt) {
+    if (Coverage.active != null) Coverage.active.register(stmt);
     stmt.accept(this);
   }
 
@@ -259,50 +395,96 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private void resolveFunction(
       Stmt.Function function, FunctionType type) {
+    DeferredBody deferred = interpreter.deferredBody(function);
+    if (deferred != null) {
+      // Not parsed yet. Remember where we are and resolve it on first call.
+      deferred.capture(scopes, type, currentClass);
+      for (Map<String, Binding> scope : scopes) {
+        for (Binding binding : scope.values()) binding.escaped = true;
+      }
+      return;
+    }
+
+    resolveFunctionBody(function.params, function.body, type);
+    interpreter.resolveFunction(function, this);
+  }
+
+  private void resolveFunctionBody(
+      List<Token> params, List<Stmt> body, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
+    functionDepth++;
 
     beginScope();
-    for (Token param : function.params) {
-      declare(param);
+    for (Token param : params) {
+      declare(param, null);
       define(param);
     }
-    resolve(function.body);
+    resolve(body);
     endScope();
+    functionDepth--;
     currentFunction = enclosingFunction;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new HashMap<String, Binding>());
   }
 
   private void endScope() {
     scopes.pop();
   }
 
-  private void declare(Token name) {
-    if(scopes.isEmpty()) return;
+  private void declare(Token name, Stmt declaration) {
+    if(scopes.isEmpty()) {
+      declareGlobal(name, declaration);
+      return;
+    }
 
-    Map<String, Boolean> scope = scopes.peek();
+    Map<String, Binding> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)) {
       Lox.error(name,
       "Already a variable with this name in this scope.");
     }
 
-    scope.put(name.lexeme, false);
+    Binding binding = new Binding(name, declaration, functionDepth);
+    scope.put(name.lexeme, binding);
+    if (declaration != null) declarations.put(declaration, binding);
+  }
+
+  // Globals can be redeclared, but not once one is a constant. Constants
+  // are kept by the interpreter, since each line at the prompt and each lazy
+  // body gets a Resolver of its own.
+  private void declareGlobal(Token name, Stmt declaration) {
+    if (interpreter.isConstant(name.lexeme)) {
+      Lox.error(name, "Already a constant with this name.");
+    }
+
+    if (declaration instanceof Stmt.Var && ((Stmt.Var)declaration).isConst) {
+      interpreter.declareConstant(name.lexeme);
+    }
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().get(name.lexeme).defined = true;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  private void putImplicit(String name) {
+    Binding binding = new Binding(null, null, functionDepth);
+    binding.defined = true;
+    scopes.peek().put(name, binding);
+  }
+
+  private Binding resolveLocal(Expr expr, Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
+      Binding binding = scopes.get(i).get(name.lexeme);
+      if (binding != null) {
         interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
+        uses.put(expr, binding);
+        if (binding.function != functionDepth) binding.captured = true;
+        return binding;
       }
     }
+    return null;
   }
 }
@@ -0,0 +1,94 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A sampling profiler for Lox code, for --profile=out.folded. A daemon
+// thread looks at the interpreter's ShadowStack every millisecond and
+// counts how often it saw each stack, with the line each frame was at. The
+// result is written in the collapsed format flame graph tools read, one
+// stack per line with its count:
+//   <script>:12;fib:3;fib:3 41
+//
+// Lines are worked out here on the sampling thread, from the first token of
+// each frame's statement, so the interpreter's side stays cheap.
+class Sampler {
+  private static final long INTERVAL_MILLIS = 1;
+
+  private final ShadowStack frames;
+  // Only touched by the sampling thread until it has stopped.
+  private final Map<String, Long> samples = new HashMap<>();
+  private final Map<Stmt, Integer> lines = new HashMap<>();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  Sampler(ShadowStack frames) {
+    this.frames = frames;
+    thread = new Thread(this::sample, "lox-sampler");
+    thread.setDaemon(true);
+  }
+
+  // Called right before the script runs. Sampling from the start would
+  // charge scanning, parsing and the passes to the script's top level.
+  // Lines at the prompt each call it again.
+  void start() {
+    if (thread.getState() == Thread.State.NEW) thread.start();
+  }
+
+  private void sample() {
+    StringBuilder stack = new StringBuilder();
+    while (running) {
+      try {
+        Thread.sleep(INTERVAL_MILLIS);
+      } catch (InterruptedException error) {
+        return;
+      }
+
+      // Either array may be replaced by a bigger one while this runs.
+      String[] names = frames.names;
+      Stmt[] statements = frames.statements;
+      int depth = Math.min(frames.depth,
+          Math.min(names.length, statements.length));
+
+      stack.setLength(0);
+      for (int i = 0; i < depth; i++) {
+        String name = names[i];
+        if (name == null) break;
+        if (i > 0) stack.append(';');
+        stack.append(name);
+
+        Stmt stmt = statements[i];
+        int line = 0;
+        if (stmt != null) {
+          line = lines.computeIfAbsent(stmt, ShadowStack::line);
+        }
+        if (line > 0) stack.append(':').append(line);
+      }
+      samples.merge(stack.toString(), 1L, Long::sum);
+    }
+  }
+
+  // Stops sampling and writes what was seen, busiest stacks first.
+  void write(Path file) throws IOException {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+
+    Map<String, Long> sorted = new TreeMap<>(samples);
+    StringBuilder folded = new StringBuilder();
+    sorted.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .forEach(entry -> folded.append(entry.getKey()).append(' ')
+            .append(entry.getValue()).append('\n'));
+    Files.write(file, folded.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
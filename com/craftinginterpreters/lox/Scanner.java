@@ -8,14 +8,22 @@ import java.util.Map;
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
+    private final Source origin;
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
+    // Every identifier spelling seen so far, so tokens for the same name
+    // share one lexeme string instead of each keeping its own copy.
+    private final Map<String, String> names = new HashMap<>();
     private int start = 0;
     private int current = 0;
-    private int line = 1;
 
     Scanner(String source) {
-        this.source = source;
+        this(new Source(source));
+    }
+
+    Scanner(Source origin) {
+        this.origin = origin;
+        this.source = origin.text;
     }
 
     List<Token> scanTokens() {
@@ -25,7 +33,7 @@ class Scanner {
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(new Token(EOF, "", null, origin, current));
         return tokens;
     }
     private boolean isAtEnd() {
@@ -41,8 +49,10 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        // Punctuation and keywords always have the same spelling.
+        String text = lexemes[type.ordinal()];
+        if (text == null) text = source.substring(start, current);
+        tokens.add(new Token(type, text, literal, origin, start));
     }
 
     private void scanToken() {
@@ -85,7 +95,6 @@ class Scanner {
               break;
             
             case '\n':
-              line++;
               break;
 
             case '"': string(); break;
@@ -96,20 +105,17 @@ class Scanner {
               } else if (isAlpha(c)) {
                 identifier();
               } else {
-                Lox.error(line, "Unexpected character.");
+                Lox.error(origin, start, "Unexpected character.");
               }
               break;
         }
     }
 
     private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-          if (peek() == '\n') line++;
-          advance();
-        }
+        while (peek() != '"' && !isAtEnd()) advance();
 
         if (isAtEnd()) {
-          Lox.error(line, "Unterminated string.");
+          Lox.error(origin, start, "Unterminated string.");
           return;
         }
 
@@ -174,8 +180,14 @@ class Scanner {
 
       String text = source.substring(start, current);
       TokenType type = keywords.get(text);
-      if (type == null) type = IDENTIFIER;
-      addToken(type);
+      if (type != null) {
+        addToken(type);
+        return;
+      }
+
+      String name = names.putIfAbsent(text, text);
+      if (name == null) name = text;
+      tokens.add(new Token(IDENTIFIER, name, null, origin, start));
     }
     
     private static final Map<String, TokenType> keywords;
@@ -184,6 +196,7 @@ class Scanner {
       keywords = new HashMap<>();
       keywords.put("and", AND);
       keywords.put("class", CLASS);
+      keywords.put("const", CONST);
       keywords.put("else", ELSE);
       keywords.put("false", FALSE);
       keywords.put("for", FOR);
@@ -200,6 +213,36 @@ class Scanner {
       keywords.put("while", WHILE);
 /*       keywords.put("break", BREAK); */
     }
+
+    // The fixed spelling of each punctuation and keyword token type, or null
+    // for types whose lexeme comes from the source.
+    private static final String[] lexemes =
+        new String[TokenType.values().length];
+
+    static {
+      for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+        lexemes[keyword.getValue().ordinal()] = keyword.getKey();
+      }
+      lexemes[LEFT_PAREN.ordinal()] = "(";
+      lexemes[RIGHT_PAREN.ordinal()] = ")";
+      lexemes[LEFT_BRACE.ordinal()] = "{";
+      lexemes[RIGHT_BRACE.ordinal()] = "}";
+      lexemes[COMMA.ordinal()] = ",";
+      lexemes[DOT.ordinal()] = ".";
+      lexemes[MINUS.ordinal()] = "-";
+      lexemes[PLUS.ordinal()] = "+";
+      lexemes[SEMICOLON.ordinal()] = ";";
+      lexemes[SLASH.ordinal()] = "/";
+      lexemes[STAR.ordinal()] = "*";
+      lexemes[BANG.ordinal()] = "!";
+      lexemes[BANG_EQUAL.ordinal()] = "!=";
+      lexemes[EQUAL.ordinal()] = "=";
+      lexemes[EQUAL_EQUAL.ordinal()] = "==";
+      lexemes[GREATER.ordinal()] = ">";
+      lexemes[GREATER_EQUAL.ordinal()] = ">=";
+      lexemes[LESS.ordinal()] = "<";
+      lexemes[LESS_EQUAL.ordinal()] = "<=";
+    }
 }
     
 
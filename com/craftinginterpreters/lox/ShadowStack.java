@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The Lox call stack, kept alongside the Java one for the tools that need to
+// know where a script is: --profile and --allocations. LoxFunction pushes
+// the function's name on each call and pops it on return, and every
+// statement executed is noted in the top frame.
+//
+// Only the interpreter's thread writes it. Sampler reads it from another
+// thread without locking, so it may catch it a frame off in the middle of
+// a call or a return. Keeping the writes down to a few plain stores is
+// worth that.
+class ShadowStack {
+  String[] names = new String[64];
+  Stmt[] statements = new Stmt[64];
+  // Frame zero is the script itself.
+  volatile int depth = 1;
+
+  ShadowStack() {
+    names[0] = "<script>";
+  }
+
+  void push(String name) {
+    int top = depth;
+    if (top == names.length) {
+      statements = Arrays.copyOf(statements, top * 2);
+      names = Arrays.copyOf(names, top * 2);
+    }
+    names[top] = name;
+    statements[top] = null;
+    depth = top + 1;
+  }
+
+  void pop() {
+    depth--;
+  }
+
+  void at(Stmt stmt) {
+    statements[depth - 1] = stmt;
+  }
+
+  // Zero when the statement has no token to go by.
+  static int line(Stmt stmt) {
+    Token token = firstToken(stmt);
+    if (token == null) return 0;
+    return token.line();
+  }
+
+  private static Token firstToken(Stmt stmt) {
+    if (stmt == null) return null;
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        for (Stmt statement : ((Stmt.Block)stmt).statements) {
+          Token token = firstToken(statement);
+          if (token != null) return token;
+        }
+        return null;
+      case Stmt.CLASS: return ((Stmt.Class)stmt).name;
+      case Stmt.EXPRESSION:
+        return firstToken(((Stmt.Expression)stmt).expression);
+      case Stmt.FUNCTION: return ((Stmt.Function)stmt).name;
+      case Stmt.HOIST: return firstToken(((Stmt.Hoist)stmt).expression);
+      case Stmt.IF: return ((Stmt.If)stmt).keyword;
+      case Stmt.PRINT: return ((Stmt.Print)stmt).keyword;
+      case Stmt.RETURN: return ((Stmt.Return)stmt).keyword;
+      case Stmt.VAR: return ((Stmt.Var)stmt).name;
+      case Stmt.WHILE: return ((Stmt.While)stmt).keyword;
+    }
+    return null;
+  }
+
+  private static Token firstToken(Expr expr) {
+    if (expr == null) return null;
+    switch (expr.kind) {
+      case Expr.ARITHMETIC: {
+        Expr.Arithmetic arithmetic = (Expr.Arithmetic)expr;
+        Token token = firstToken(arithmetic.left);
+        return token != null ? token : arithmetic.operator;
+      }
+      case Expr.ASSIGN: return ((Expr.Assign)expr).name;
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary)expr;
+        Token token = firstToken(binary.left);
+        return token != null ? token : binary.operator;
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call)expr;
+        Token token = firstToken(call.callee);
+        return token != null ? token : call.paren;
+      }
+      case Expr.GET: {
+        Expr.Get get = (Expr.Get)expr;
+        Token token = firstToken(get.object);
+        return token != null ? token : get.name;
+      }
+      case Expr.GROUPING:
+        return firstToken(((Expr.Grouping)expr).expression);
+      case Expr.HOISTED:
+        return firstToken(((Expr.Hoisted)expr).expression);
+      case Expr.LITERAL: return null;
+      case Expr.LOGICAL: {
+        Expr.Logical logical = (Expr.Logical)expr;
+        Token token = firstToken(logical.left);
+        return token != null ? token : logical.operator;
+      }
+      case Expr.NEGATE: return ((Expr.Negate)expr).operator;
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set)expr;
+        Token token = firstToken(set.object);
+        return token != null ? token : set.name;
+      }
+      case Expr.SUPER: return ((Expr.Super)expr).keyword;
+      case Expr.THIS: return ((Expr.This)expr).keyword;
+      case Expr.UNARY: return ((Expr.Unary)expr).operator;
+      case Expr.VARIABLE: return ((Expr.Variable)expr).name;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The text of one script, or one line typed at the prompt. Tokens don't store
+// line numbers. They point at their Source and keep a char offset into its
+// text, and line and column are worked out from that only when something
+// asks, like an error report. Nothing else holds on to a Source, so it goes
+// when the last tree built from it does.
+class Source {
+  final String text;
+  // Offset of the first char of each line, built on first use.
+  private int[] lineStarts;
+
+  Source(String text) {
+    this.text = text;
+  }
+
+  int line(int offset) {
+    return lineIndex(offset) + 1;
+  }
+
+  int column(int offset) {
+    return offset - lineStarts[lineIndex(offset)] + 1;
+  }
+
+  private synchronized int lineIndex(int offset) {
+    if (lineStarts == null) {
+      int[] starts = new int[16];
+      int count = 1;
+      for (int i = 0; i < text.length(); i++) {
+        if (text.charAt(i) != '\n') continue;
+        if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+        starts[count++] = i + 1;
+      }
+      lineStarts = Arrays.copyOf(starts, count);
+    }
+
+    int index = Arrays.binarySearch(lineStarts, offset);
+    // Between two starts, binarySearch gives -(insertion point) - 1.
+    return index >= 0 ? index : -index - 2;
+  }
+}
@@ -2,20 +2,54 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt permits
+    Stmt.Block,
+    Stmt.Class,
+    Stmt.Expression,
+    Stmt.Function,
+    Stmt.Hoist,
+    Stmt.If,
+    Stmt.Print,
+    Stmt.Return,
+    Stmt.Var,
+    Stmt.While {
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int HOIST = 4;
+  static final int IF = 5;
+  static final int PRINT = 6;
+  static final int RETURN = 7;
+  static final int VAR = 8;
+  static final int WHILE = 9;
+  static final int KINDS = 10;
+  static final String[] NAMES = {"Block", "Class", "Expression", "Function", "Hoist", "If", "Print", "Return", "Var", "While"};
+
+  final int kind;
+  // Its bit in the --coverage bitmap, numbered by the Resolver. Zero for
+  // statements made after that, which share a bit no report reads.
+  int coverage;
+
+  private Stmt(int kind) {
+    this.kind = kind;
+  }
+
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
+    R visitHoistStmt(Hoist stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
   }
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
     Block(List<Stmt> statements) {
+    super(BLOCK);
     this.statements = statements;
     }
 
@@ -26,8 +60,9 @@ abstract class Stmt {
       return visitor.visitBlockStmt(this);
     }
   }
-  static class Class extends Stmt {
+  static final class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+    super(CLASS);
     this.name = name;
     this.superclass = superclass;
     this.methods = methods;
@@ -42,8 +77,9 @@ abstract class Stmt {
       return visitor.visitClassStmt(this);
     }
   }
-  static class Expression extends Stmt {
+  static final class Expression extends Stmt {
     Expression(Expr expression) {
+    super(EXPRESSION);
     this.expression = expression;
     }
 
@@ -54,8 +90,9 @@ abstract class Stmt {
       return visitor.visitExpressionStmt(this);
     }
   }
-  static class Function extends Stmt {
+  static final class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
+    super(FUNCTION);
     this.name = name;
     this.params = params;
     this.body = body;
@@ -64,19 +101,40 @@ abstract class Stmt {
   final Token name;
   final List<Token> params;
   final List<Stmt> body;
+  // True while a lazy Parser has skipped the body, until the Interpreter
+  // parses it on the first call.
+  boolean deferred;
 
     @Override
     <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
   }
-  static class If extends Stmt {
-    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+  static final class Hoist extends Stmt {
+    Hoist(Token name, Expr expression) {
+    super(HOIST);
+    this.name = name;
+    this.expression = expression;
+    }
+
+  final Token name;
+  final Expr expression;
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitHoistStmt(this);
+    }
+  }
+  static final class If extends Stmt {
+    If(Token keyword, Expr condition, Stmt thenBranch, Stmt elseBranch) {
+    super(IF);
+    this.keyword = keyword;
     this.condition = condition;
     this.thenBranch = thenBranch;
     this.elseBranch = elseBranch;
     }
 
+  final Token keyword;
   final Expr condition;
   final Stmt thenBranch;
   final Stmt elseBranch;
@@ -86,11 +144,14 @@ abstract class Stmt {
       return visitor.visitIfStmt(this);
     }
   }
-  static class Print extends Stmt {
-    Print(Expr expression) {
+  static final class Print extends Stmt {
+    Print(Token keyword, Expr expression) {
+    super(PRINT);
+    this.keyword = keyword;
     this.expression = expression;
     }
 
+  final Token keyword;
   final Expr expression;
 
     @Override
@@ -98,8 +159,9 @@ abstract class Stmt {
       return visitor.visitPrintStmt(this);
     }
   }
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
     Return(Token keyword, Expr value) {
+    super(RETURN);
     this.keyword = keyword;
     this.value = value;
     }
@@ -112,26 +174,32 @@ abstract class Stmt {
       return visitor.visitReturnStmt(this);
     }
   }
-  static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
+  static final class Var extends Stmt {
+    Var(Token name, Expr initializer, boolean isConst) {
+    super(VAR);
     this.name = name;
     this.initializer = initializer;
+    this.isConst = isConst;
     }
 
   final Token name;
   final Expr initializer;
+  final boolean isConst;
 
     @Override
     <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
   }
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+  static final class While extends Stmt {
+    While(Token keyword, Expr condition, Stmt body) {
+    super(WHILE);
+    this.keyword = keyword;
     this.condition = condition;
     this.body = body;
     }
 
+  final Token keyword;
   final Expr condition;
   final Stmt body;
 
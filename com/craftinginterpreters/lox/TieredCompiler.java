@@ -0,0 +1,163 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Tiered execution for --tiered. Every function starts out running its
+// body as parsed. Calls to it and iterations of loops inside it are counted,
+// and once the count reaches THRESHOLD the function is handed to a
+// background thread that runs the optimizer passes over it. The optimized
+// body is published through a volatile field and picked up by the next call,
+// so calls already running finish in the old tree and the main thread never
+// waits for the compiler.
+//
+// A loop outside any function is only entered once, so it's counted and
+// compiled on its own instead, and the interpreter switches to the
+// optimized loop between two iterations. See Interpreter.visitWhileStmt.
+//
+// Code that got hot on the last run of the same script, according to the
+// ProfileCache, is compiled the first time it runs.
+//
+// There's a single compiler thread, so the Resolver's bindings are only ever
+// changed by one pass at a time. The main thread never touches them once
+// the program is resolved. Depths are shared, so the interpreter keeps them
+// in a concurrent map while tiering is on.
+class TieredCompiler {
+  static final int THRESHOLD = 1000;
+
+  private final Map<Stmt.Function, Profile> functions = new HashMap<>();
+  private final Map<Stmt.While, Profile> loops = new HashMap<>();
+  // Every profile, in the order the Resolver registered the code.
+  private final List<Profile> registered = new ArrayList<>();
+  private Set<Integer> warm = new HashSet<>();
+  // A failing pass is reported once, since it likely fails on every
+  // function. Only the compiler thread touches this.
+  private boolean reported = false;
+  private final ExecutorService thread =
+      Executors.newSingleThreadExecutor(runnable -> {
+        Thread compiler = new Thread(null, runnable, "lox-compiler",
+            Lox.STACK_SIZE);
+        compiler.setDaemon(true);
+        return compiler;
+      });
+
+  // Functions inside an optimized body are copies the compiler made and
+  // optimized along with it, so they're never registered.
+  void register(Stmt.Function function, Resolver resolver) {
+    functions.put(function, register(List.of(function), resolver));
+  }
+
+  // The passes only see the loop, so it goes in a block when it isn't at the
+  // top level. That tells them its locals aren't globals, and the block's
+  // statements run in the environment the loop is already in.
+  void register(Stmt.While loop, Resolver resolver, boolean global) {
+    List<Stmt> code = List.of(loop);
+    if (!global) code = List.of(new Stmt.Block(code));
+    loops.put(loop, register(code, resolver));
+  }
+
+  private Profile register(List<Stmt> code, Resolver resolver) {
+    boolean hot = warm.contains(registered.size());
+    Profile profile = new Profile(code, resolver, hot ? 1 : THRESHOLD);
+    registered.add(profile);
+    return profile;
+  }
+
+  // Must come before anything is registered.
+  void warmUp(Set<Integer> hot) {
+    warm = hot;
+  }
+
+  // The code worth compiling right away next time: what got hot this run,
+  // and what was already known to be hot but didn't run.
+  Set<Integer> hot() {
+    Set<Integer> hot = new HashSet<>();
+    for (int i = 0; i < registered.size(); i++) {
+      Profile profile = registered.get(i);
+      if (profile.failed) continue;
+      if (profile.count >= profile.threshold || profile.threshold == 1) {
+        hot.add(i);
+      }
+    }
+    return hot;
+  }
+
+  // Shared by every closure made from the same declaration.
+  Profile profile(Stmt.Function function) {
+    return functions.get(function);
+  }
+
+  Profile profile(Stmt.While loop) {
+    return loops.get(loop);
+  }
+
+  class Profile {
+    private final List<Stmt> code;
+    private final Resolver resolver;
+    // Waiting for the code to run before compiling it, even when it's known
+    // to be hot, leaves the passes alone with the Resolver.
+    private final int threshold;
+    private int count = 0;
+    private volatile List<Stmt> compiled = null;
+    private volatile boolean failed = false;
+
+    Profile(List<Stmt> code, Resolver resolver, int threshold) {
+      this.code = code;
+      this.resolver = resolver;
+      this.threshold = threshold;
+    }
+
+    // The statements to run instead, once they're ready.
+    List<Stmt> compiled() {
+      return compiled;
+    }
+
+    void invoked() {
+      if (++count == threshold) compile(this);
+    }
+
+    void backEdge() {
+      if (++count == threshold) compile(this);
+    }
+  }
+
+  private void reportFailure(RuntimeException error) {
+    if (reported) return;
+    reported = true;
+    System.err.println("Tiered compilation failed, running unoptimized: " +
+        error);
+  }
+
+  private void compile(Profile profile) {
+    thread.execute(() -> {
+      try {
+        List<Stmt> optimized = Lox.optimize(profile.code, profile.resolver,
+            false);
+        // Nothing to gain from swapping in the same tree.
+        if (optimized == profile.code) return;
+
+        if (optimized.size() == 1) {
+          Stmt stmt = optimized.get(0);
+          if (stmt instanceof Stmt.Function) {
+            optimized = ((Stmt.Function)stmt).body;
+          } else if (stmt instanceof Stmt.Block) {
+            optimized = ((Stmt.Block)stmt).statements;
+          }
+        }
+        profile.compiled = optimized;
+      } catch (RuntimeException error) {
+        // A bug in a pass shouldn't take the program down. The code keeps
+        // running as it was, and isn't counted as hot for the next run,
+        // which would only hit the same bug sooner.
+        profile.failed = true;
+        reportFailure(error);
+      }
+    });
+  }
+}
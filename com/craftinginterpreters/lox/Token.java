@@ -4,16 +4,30 @@ class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int line;
+    // Where the token starts: a char offset into the text of source. Null
+    // for the names the optimizer makes up.
+    final Source source;
+    final int offset;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    Token(TokenType type, String lexeme, Object literal, Source source,
+          int offset) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
-        this.line = line;
+        this.source = source;
+        this.offset = offset;
+    }
+
+    // Zero when there's no source to look in.
+    int line() {
+        return source == null ? 0 : source.line(offset);
+    }
+
+    int column() {
+        return source == null ? 0 : source.column(offset);
     }
 
     public String toString() {
         return type + " " + lexeme + " " + literal;
     }
-}
\ No newline at end of file
+}
@@ -15,7 +15,7 @@ enum TokenType {
     IDENTIFIER, STRING, NUMBER,
 
     // "Keywords."
-    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
+    AND, CLASS, CONST, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
     PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, /* BREAK, */
 
     EOF
@@ -0,0 +1,272 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base class for the passes that rewrite the tree between the Resolver and the
+// Interpreter. Every visit method transforms a node's children and builds a
+// new node only if one of them changed, so untouched subtrees keep their
+// identity, and with it the depths and bindings recorded against them.
+//
+// A pass overrides the visit methods it cares about. Returning null from a
+// statement visit deletes the statement.
+abstract class Transformer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  final Interpreter interpreter;
+  final Resolver resolver;
+
+  Transformer(Interpreter interpreter, Resolver resolver) {
+    this.interpreter = interpreter;
+    this.resolver = resolver;
+  }
+
+  List<Stmt> transform(List<Stmt> statements) {
+    List<Stmt> result = null;
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt statement = statements.get(i);
+      Stmt transformed = transform(statement);
+      if (transformed != statement && result == null) {
+        result = new ArrayList<>(statements.subList(0, i));
+      }
+      if (result != null && transformed != null) result.add(transformed);
+    }
+
+    return result == null ? statements : result;
+  }
+
+  Stmt transform(Stmt stmt) {
+    if (stmt == null) return null;
+    Stmt transformed = stmt.accept(this);
+    // A rewritten statement still covers the source the old one did.
+    if (transformed != null && transformed.coverage == 0) {
+      transformed.coverage = stmt.coverage;
+    }
+    return transformed;
+  }
+
+  Expr transform(Expr expr) {
+    if (expr == null) return null;
+    return expr.accept(this);
+  }
+
+  // For places the grammar needs a statement, like a branch or loop body.
+  Stmt transformBody(Stmt stmt) {
+    Stmt transformed = transform(stmt);
+    if (transformed == null) return new Stmt.Block(new ArrayList<>());
+    return transformed;
+  }
+
+  // Carries the resolved depth and binding of a variable use over to the
+  // node replacing it.
+  <T extends Expr> T replaced(Expr original, T replacement) {
+    Integer depth = interpreter.localDepth(original);
+    if (depth != null) interpreter.resolve(replacement, depth);
+    resolver.copyBinding(original, replacement);
+    return replacement;
+  }
+
+  <T extends Stmt> T replaced(Stmt original, T replacement) {
+    resolver.copyBinding(original, replacement);
+    return replacement;
+  }
+
+  @Override
+  public Expr visitArithmeticExpr(Expr.Arithmetic expr) {
+    Expr left = transform(expr.left);
+    Expr right = transform(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Arithmetic(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = transform(expr.value);
+    if (value == expr.value) return expr;
+    return replaced(expr, new Expr.Assign(expr.name, value));
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = transform(expr.left);
+    Expr right = transform(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = transform(expr.callee);
+    List<Expr> arguments = transformArguments(expr.arguments);
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  List<Expr> transformArguments(List<Expr> arguments) {
+    List<Expr> result = null;
+    for (int i = 0; i < arguments.size(); i++) {
+      Expr argument = arguments.get(i);
+      Expr transformed = transform(argument);
+      if (transformed != argument && result == null) {
+        result = new ArrayList<>(arguments.subList(0, i));
+      }
+      if (result != null) result.add(transformed);
+    }
+
+    return result == null ? arguments : result;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = transform(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = transform(expr.expression);
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  // The original expression is only a fallback, and its depths are those of
+  // where it's used, so it's left alone.
+  @Override
+  public Expr visitHoistedExpr(Expr.Hoisted expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = transform(expr.left);
+    Expr right = transform(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitNegateExpr(Expr.Negate expr) {
+    Expr right = transform(expr.right);
+    if (right == expr.right) return expr;
+    return new Expr.Negate(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = transform(expr.object);
+    Expr value = transform(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = transform(expr.right);
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = transform(stmt.statements);
+    if (statements == stmt.statements) return stmt;
+    return new Stmt.Block(statements);
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = null;
+    for (int i = 0; i < stmt.methods.size(); i++) {
+      Stmt.Function method = stmt.methods.get(i);
+      Stmt.Function transformed = (Stmt.Function)transform(method);
+      if (transformed != method && methods == null) {
+        methods = new ArrayList<>(stmt.methods.subList(0, i));
+      }
+      if (methods != null) methods.add(transformed);
+    }
+
+    if (methods == null) return stmt;
+    return replaced(stmt, new Stmt.Class(stmt.name, stmt.superclass, methods));
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = transform(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    List<Stmt> body = transform(stmt.body);
+    if (body == stmt.body) return stmt;
+    return replaced(stmt, new Stmt.Function(stmt.name, stmt.params, body));
+  }
+
+  @Override
+  public Stmt visitHoistStmt(Stmt.Hoist stmt) {
+    Expr expression = transform(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Hoist(stmt.name, expression);
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = transform(stmt.condition);
+    Stmt thenBranch = transformBody(stmt.thenBranch);
+    Stmt elseBranch = transform(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(stmt.keyword, condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = transform(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(stmt.keyword, expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Expr value = transform(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = transform(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+    return replaced(stmt, new Stmt.Var(stmt.name, initializer, stmt.isConst));
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = transform(stmt.condition);
+    Stmt body = transformBody(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(stmt.keyword, condition, body);
+  }
+}
@@ -0,0 +1,414 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Works out which locals hold a number, string, boolean or nil at each point
+// in the program, following the code's control flow, and uses that to
+// replace operators whose operands are proven numbers with Expr.Arithmetic
+// and Expr.Negate. The interpreter evaluates those without checking operand
+// types.
+//
+// A local's type comes from what was last stored in it: its initializer or
+// an assignment. After an if, each local has the type both branches agree
+// on. A while is walked until the types at its start stop changing, without
+// rewriting anything, then once more to rewrite it. A checked operator that
+// succeeded also proves its variable operands were numbers, which is how
+// parameters like n in fib(n) get a type after "if (n < 2)".
+//
+// Globals, and locals that a closure assigns or lazily parsed code might see,
+// can change behind the code's back, so they're never given a type.
+class TypeInferrer extends Transformer {
+  enum Type {
+    NUMBER,
+    STRING,
+    BOOLEAN,
+    NIL,
+    UNKNOWN
+  }
+
+  // The type of each local at the current point, with UNKNOWN ones left out.
+  // Null when the current point can't be reached.
+  private Map<Resolver.Binding, Type> types = new HashMap<>();
+  // What each local was declared with, for reads from nested functions of
+  // locals that are never assigned.
+  private final Map<Resolver.Binding, Type> declared = new HashMap<>();
+  // The type of the expression last transformed.
+  private Type type = Type.UNKNOWN;
+  // Off while a loop is walked to find its types.
+  private boolean rewrite = true;
+  private int functionDepth = 0;
+  // Counts local assignments, to tell whether one happened while an
+  // operand was evaluated.
+  private int assignments = 0;
+
+  // Coverage, for --types.
+  private int operations = 0;
+  private int specialized = 0;
+  private int reads = 0;
+  private int typedReads = 0;
+
+  // Every pass's coverage added up. The tiered compiler runs a pass per hot
+  // function on its own thread, so it's reported once, at exit.
+  private static int totalOperations = 0;
+  private static int totalSpecialized = 0;
+  private static int totalReads = 0;
+  private static int totalTypedReads = 0;
+
+  TypeInferrer(Interpreter interpreter, Resolver resolver) {
+    super(interpreter, resolver);
+  }
+
+  void record() {
+    synchronized (TypeInferrer.class) {
+      totalOperations += operations;
+      totalSpecialized += specialized;
+      totalReads += reads;
+      totalTypedReads += typedReads;
+    }
+  }
+
+  static synchronized String coverage() {
+    return "Typed " + totalSpecialized + " of " + totalOperations +
+        " arithmetic operations (" +
+        percent(totalSpecialized, totalOperations) + ") and " +
+        totalTypedReads + " of " + totalReads + " variable reads (" +
+        percent(totalTypedReads, totalReads) + ").";
+  }
+
+  private static String percent(int part, int whole) {
+    if (whole == 0) return "-";
+    return (100 * part / whole) + "%";
+  }
+
+  @Override
+  Stmt transform(Stmt stmt) {
+    // Nothing is known in code that can't be reached.
+    if (types == null) types = new HashMap<>();
+    return super.transform(stmt);
+  }
+
+  @Override
+  Expr transform(Expr expr) {
+    type = Type.UNKNOWN;
+    return super.transform(expr);
+  }
+
+  @Override
+  public Expr visitArithmeticExpr(Expr.Arithmetic expr) {
+    Expr transformed = super.visitArithmeticExpr(expr);
+    type = isComparison(expr.operator.type) ? Type.BOOLEAN : Type.NUMBER;
+    return transformed;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr transformed = super.visitAssignExpr(expr);
+
+    Resolver.Binding binding = resolver.binding(expr);
+    if (isTracked(binding)) {
+      assignments++;
+      set(binding, type);
+    }
+    return transformed;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = transform(expr.left);
+    Type leftType = type;
+    int before = assignments;
+    Expr right = transform(expr.right);
+    Type rightType = type;
+    boolean leftUnchanged = before == assignments;
+
+    Expr result = expr;
+    if (left != expr.left || right != expr.right) {
+      result = new Expr.Binary(left, expr.operator, right);
+    }
+
+    TokenType operator = expr.operator.type;
+    switch (operator) {
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+        type = Type.BOOLEAN;
+        return result;
+
+      case PLUS:
+        // Either both operands are numbers or both are strings.
+        if (leftType == Type.STRING || rightType == Type.STRING) {
+          type = Type.STRING;
+        } else if (leftType == Type.NUMBER || rightType == Type.NUMBER) {
+          if (leftUnchanged) proveNumber(left);
+          proveNumber(right);
+          type = Type.NUMBER;
+        } else {
+          type = Type.UNKNOWN;
+        }
+        break;
+
+      default:
+        // Every other operator fails unless both operands are numbers, so
+        // getting past it proves they were.
+        if (leftUnchanged) proveNumber(left);
+        proveNumber(right);
+        type = isComparison(operator) ? Type.BOOLEAN : Type.NUMBER;
+        break;
+    }
+
+    if (!rewrite) return result;
+
+    operations++;
+    if (leftType != Type.NUMBER || rightType != Type.NUMBER) return result;
+    specialized++;
+    return new Expr.Arithmetic(left, expr.operator, right);
+  }
+
+  private static boolean isComparison(TokenType operator) {
+    return operator == TokenType.GREATER ||
+        operator == TokenType.GREATER_EQUAL ||
+        operator == TokenType.LESS ||
+        operator == TokenType.LESS_EQUAL;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr transformed = super.visitCallExpr(expr);
+    type = Type.UNKNOWN;
+    return transformed;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr transformed = super.visitGetExpr(expr);
+    type = Type.UNKNOWN;
+    return transformed;
+  }
+
+  // Grouping and Set keep the type of the expression inside and the
+  // assigned value.
+
+  @Override
+  public Expr visitHoistedExpr(Expr.Hoisted expr) {
+    type = Type.UNKNOWN;
+    return expr;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    type = typeOf(expr.value);
+    return expr;
+  }
+
+  private static Type typeOf(Object value) {
+    if (value == null) return Type.NIL;
+    if (value instanceof Double) return Type.NUMBER;
+    if (value instanceof String) return Type.STRING;
+    if (value instanceof Boolean) return Type.BOOLEAN;
+    return Type.UNKNOWN;
+  }
+
+  // The result is one operand or the other, and the right one only runs
+  // sometimes.
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = transform(expr.left);
+    Type leftType = type;
+    Map<Resolver.Binding, Type> skipped = new HashMap<>(types);
+    Expr right = transform(expr.right);
+    Type rightType = type;
+    types = join(skipped, types);
+
+    type = leftType == rightType ? leftType : Type.UNKNOWN;
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitNegateExpr(Expr.Negate expr) {
+    Expr transformed = super.visitNegateExpr(expr);
+    type = Type.NUMBER;
+    return transformed;
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    type = Type.UNKNOWN;
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    type = Type.UNKNOWN;
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = transform(expr.right);
+    Type rightType = type;
+
+    if (expr.operator.type == TokenType.BANG) {
+      type = Type.BOOLEAN;
+      if (right == expr.right) return expr;
+      return new Expr.Unary(expr.operator, right);
+    }
+
+    proveNumber(right);
+    type = Type.NUMBER;
+    if (rewrite) {
+      operations++;
+      if (rightType == Type.NUMBER) specialized++;
+    }
+
+    if (rewrite && rightType == Type.NUMBER) {
+      return new Expr.Negate(expr.operator, right);
+    }
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    type = typeOf(resolver.binding(expr));
+    if (rewrite) {
+      reads++;
+      if (type != Type.UNKNOWN) typedReads++;
+    }
+    return expr;
+  }
+
+  private Type typeOf(Resolver.Binding binding) {
+    if (!isTracked(binding)) return Type.UNKNOWN;
+
+    // From a nested function, only a local that never changes is known.
+    if (binding.function != functionDepth) {
+      if (!binding.neverAssigned()) return Type.UNKNOWN;
+      return declared.getOrDefault(binding, Type.UNKNOWN);
+    }
+
+    return types.getOrDefault(binding, Type.UNKNOWN);
+  }
+
+  private boolean isTracked(Resolver.Binding binding) {
+    if (binding == null) return false;
+    if (binding.isConst) return true;
+    if (binding.escaped) return false;
+    // A call could run a closure that assigns it.
+    return !binding.captured || binding.writes == 0;
+  }
+
+  private void set(Resolver.Binding binding, Type type) {
+    if (type == Type.UNKNOWN) {
+      types.remove(binding);
+    } else {
+      types.put(binding, type);
+    }
+  }
+
+  // Records that a variable operand held a number, once an operator that
+  // requires one has succeeded.
+  private void proveNumber(Expr operand) {
+    if (!(operand instanceof Expr.Variable)) return;
+
+    Resolver.Binding binding = resolver.binding(operand);
+    if (isTracked(binding) && binding.function == functionDepth) {
+      set(binding, Type.NUMBER);
+    }
+  }
+
+  // What's known at a point two paths lead to: the types they agree on.
+  private static Map<Resolver.Binding, Type> join(
+      Map<Resolver.Binding, Type> a, Map<Resolver.Binding, Type> b) {
+    if (a == null) return b;
+    if (b == null) return a;
+
+    Map<Resolver.Binding, Type> joined = new HashMap<>();
+    for (Map.Entry<Resolver.Binding, Type> entry : a.entrySet()) {
+      if (entry.getValue() == b.get(entry.getKey())) {
+        joined.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return joined;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Map<Resolver.Binding, Type> enclosing = types;
+    // Parameters could be anything.
+    types = new HashMap<>();
+    functionDepth++;
+    try {
+      return super.visitFunctionStmt(stmt);
+    } finally {
+      functionDepth--;
+      types = enclosing;
+    }
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = transform(stmt.condition);
+
+    Map<Resolver.Binding, Type> otherwise = new HashMap<>(types);
+    Stmt thenBranch = transformBody(stmt.thenBranch);
+    Map<Resolver.Binding, Type> afterThen = types;
+    types = otherwise;
+    Stmt elseBranch = transform(stmt.elseBranch);
+    types = join(afterThen, types);
+
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(stmt.keyword, condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Stmt transformed = super.visitReturnStmt(stmt);
+    types = null;
+    return transformed;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    type = Type.NIL;
+    Stmt transformed = super.visitVarStmt(stmt);
+
+    Resolver.Binding binding = resolver.binding(stmt);
+    if (isTracked(binding)) {
+      set(binding, type);
+      declared.put(binding, type);
+    }
+    return transformed;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    // Each pass around the loop can only make fewer types agree, so this
+    // stops after a few passes.
+    Map<Resolver.Binding, Type> entry = types;
+    boolean rewriting = rewrite;
+    rewrite = false;
+    for (;;) {
+      types = new HashMap<>(entry);
+      transform(stmt.condition);
+      transformBody(stmt.body);
+      Map<Resolver.Binding, Type> next = join(entry, types);
+      if (next.equals(entry)) break;
+      entry = next;
+    }
+    rewrite = rewriting;
+
+    // The loop exits right after the condition is found false.
+    types = new HashMap<>(entry);
+    Expr condition = transform(stmt.condition);
+    Map<Resolver.Binding, Type> exit = new HashMap<>(types);
+    Stmt body = transformBody(stmt.body);
+    types = exit;
+
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(stmt.keyword, condition, body);
+  }
+}
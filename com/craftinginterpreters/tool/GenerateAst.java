@@ -5,18 +5,35 @@ import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
 
+// Usage: generate_ast [--sealed] [output directory]
+//
+// Each node carries a dense int kind so callers can dispatch with a switch
+// instead of going through accept(). With --sealed the base classes are also
+// sealed over final node classes. The visitor API is emitted either way.
 public class GenerateAst {
+  private static boolean sealed = false;
+
   public static void main(String[] args) throws IOException {
     String outputDir = "com/craftinginterpreters/lox";
+    for (String arg : args) {
+      if (arg.equals("--sealed")) {
+        sealed = true;
+      } else {
+        outputDir = arg;
+      }
+    }
   
     defineAst(outputDir, "Expr", Arrays.asList(
+      "Arithmetic: Expr left, Token operator, Expr right",
       "Assign: Token name, Expr value",
       "Binary: Expr left, Token operator, Expr right",
       "Call: Expr callee, Token paren, List<Expr> arguments",
       "Get: Expr object, Token name",
       "Grouping: Expr expression",
+      "Hoisted: Expr.Variable temp, Expr expression",
       "Literal: Object value",
       "Logical: Expr left, Token operator, Expr right",
+      "Negate: Token operator, Expr right",
       "Set: Expr object, Token name, Expr value",
       "Super: Token keyword, Token method",
       "This: Token keyword",
@@ -30,12 +47,13 @@ public class GenerateAst {
       "Expression      : Expr expression",
       "Function        : Token name, List<Token> params," +
                        " List<Stmt> body",
-      "If              : Expr condition, Stmt thenBranch," +
-                       " Stmt elseBranch",
-           "Print      : Expr expression",
+      "Hoist           : Token name, Expr expression",
+      "If              : Token keyword, Expr condition," +
+                       " Stmt thenBranch, Stmt elseBranch",
+           "Print      : Token keyword, Expr expression",
            "Return     : Token keyword, Expr value",
-           "Var        : Token name, Expr initializer",
-           "While      : Expr condition, Stmt body"
+           "Var        : Token name, Expr initializer, boolean isConst",
+           "While      : Token keyword, Expr condition, Stmt body"
     ));
   }
 
@@ -49,7 +67,17 @@ public class GenerateAst {
    writer.println();
    writer.println("import java.util.List;");
    writer.println();
-   writer.println("abstract class " + baseName + " {");
+   if (sealed) {
+     writer.println("abstract sealed class " + baseName + " permits");
+     for (int i = 0; i < types.size(); i++) {
+       String className = types.get(i).split(":")[0].trim();
+       writer.println("    " + baseName + "." + className +
+           (i < types.size() - 1 ? "," : " {"));
+     }
+   } else {
+     writer.println("abstract class " + baseName + " {");
+   }
+   defineKinds(writer, baseName, types);
 
    defineVisitor(writer, baseName, types);
 
@@ -69,6 +97,36 @@ public class GenerateAst {
    writer.close();
   }
 
+  // One constant per node class, numbered densely from zero in declaration
+  // order, the class names by kind, plus the field holding it.
+  private static void defineKinds(
+      PrintWriter writer, String baseName, List<String> types) {
+    for (int i = 0; i < types.size(); i++) {
+      String className = types.get(i).split(":")[0].trim();
+      writer.println("  static final int " + className.toUpperCase() +
+          " = " + i + ";");
+    }
+    writer.println("  static final int KINDS = " + types.size() + ";");
+    writer.print("  static final String[] NAMES = {");
+    for (int i = 0; i < types.size(); i++) {
+      if (i > 0) writer.print(", ");
+      writer.print("\"" + types.get(i).split(":")[0].trim() + "\"");
+    }
+    writer.println("};");
+    writer.println();
+    writer.println("  final int kind;");
+    if (baseName.equals("Stmt")) {
+      writer.println("  // Its bit in the --coverage bitmap, numbered by the Resolver. Zero for");
+      writer.println("  // statements made after that, which share a bit no report reads.");
+      writer.println("  int coverage;");
+    }
+    writer.println();
+    writer.println("  private " + baseName + "(int kind) {");
+    writer.println("    this.kind = kind;");
+    writer.println("  }");
+    writer.println();
+  }
+
   private static void defineVisitor(
       PrintWriter writer, String baseName, List<String> types) {
     writer.println("  interface Visitor<R> {");
@@ -86,11 +144,12 @@ public class GenerateAst {
   private static void defineType(
       PrintWriter writer, String baseName,
       String className, String fieldList) {
-    writer.println("  static class " + className + " extends " +
-        baseName + " {");
+    writer.println("  static " + (sealed ? "final " : "") + "class " +
+        className + " extends " + baseName + " {");
 
     // Constructor.
     writer.println("    " + className + "(" + fieldList + ") {");
+    writer.println("    super(" + className.toUpperCase() + ");");
 
     boolean haveFields = (fieldList.equals("")==false);
 
@@ -114,6 +173,12 @@ public class GenerateAst {
 
     }
 
+    if (baseName.equals("Stmt") && className.equals("Function")) {
+      writer.println("  // True while a lazy Parser has skipped the body, until the Interpreter");
+      writer.println("  // parses it on the first call.");
+      writer.println("  boolean deferred;");
+    }
+
     // Visitor pattern.
     writer.println();
     writer.println("    @Override");
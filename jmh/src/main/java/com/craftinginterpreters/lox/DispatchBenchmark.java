@@ -0,0 +1,308 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares the two ways of dispatching on AST nodes: double dispatch through
+// accept() and the Visitor interface, and a switch over the node's kind. Both
+// walkers do the same trivial work per node, so the difference is dispatch.
+// Each returns the number of nodes it saw, so the two can be compared per
+// node.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+  private List<Stmt> statements;
+  private final VisitorWalker visitor = new VisitorWalker();
+  private final SwitchWalker kinds = new SwitchWalker();
+
+  @Setup
+  public void setUp() {
+    statements = new Parser(
+        new Scanner(generate(2000)).scanTokens()).parse();
+    if (visitor.walk(statements) != kinds.walk(statements)) {
+      throw new IllegalStateException("The walkers disagree.");
+    }
+  }
+
+  @Benchmark
+  public long accept() {
+    return visitor.walk(statements);
+  }
+
+  @Benchmark
+  public long kind() {
+    return kinds.walk(statements);
+  }
+
+  // Mixes every node type so call sites in both walkers see many receivers.
+  private static String generate(int count) {
+    StringBuilder source = new StringBuilder();
+    source.append("class A < B { m(x) { return super.m(this.f + x); } }\n");
+    for (int i = 0; i < count; i++) {
+      source.append("fun f").append(i).append("(a, b) {\n");
+      source.append("  var c = -a * (b + 2) / 3 >= 4 or !b and a.p;\n");
+      source.append("  if (c != nil) { c = a.q(b, \"s\"); } else a.p = b;\n");
+      source.append("  while (c < 10) c = c + 1;\n");
+      source.append("  print c;\n");
+      source.append("  return c;\n");
+      source.append("}\n");
+    }
+    return source.toString();
+  }
+
+  private static class VisitorWalker
+      implements Expr.Visitor<Long>, Stmt.Visitor<Long> {
+    long walk(List<Stmt> statements) {
+      long nodes = 0;
+      for (Stmt statement : statements) nodes += statement.accept(this);
+      return nodes;
+    }
+
+    private long walk(Expr expr) {
+      return expr == null ? 0 : expr.accept(this);
+    }
+
+    private long walk(Stmt stmt) {
+      return stmt == null ? 0 : stmt.accept(this);
+    }
+
+    @Override
+    public Long visitArithmeticExpr(Expr.Arithmetic expr) {
+      return 1 + walk(expr.left) + walk(expr.right);
+    }
+
+    @Override
+    public Long visitAssignExpr(Expr.Assign expr) {
+      return 1 + walk(expr.value);
+    }
+
+    @Override
+    public Long visitBinaryExpr(Expr.Binary expr) {
+      return 1 + walk(expr.left) + walk(expr.right);
+    }
+
+    @Override
+    public Long visitCallExpr(Expr.Call expr) {
+      long nodes = 1 + walk(expr.callee);
+      for (Expr argument : expr.arguments) nodes += walk(argument);
+      return nodes;
+    }
+
+    @Override
+    public Long visitGetExpr(Expr.Get expr) {
+      return 1 + walk(expr.object);
+    }
+
+    @Override
+    public Long visitGroupingExpr(Expr.Grouping expr) {
+      return 1 + walk(expr.expression);
+    }
+
+    @Override
+    public Long visitHoistedExpr(Expr.Hoisted expr) {
+      return 1 + walk(expr.temp) + walk(expr.expression);
+    }
+
+    @Override
+    public Long visitLiteralExpr(Expr.Literal expr) {
+      return 1L;
+    }
+
+    @Override
+    public Long visitLogicalExpr(Expr.Logical expr) {
+      return 1 + walk(expr.left) + walk(expr.right);
+    }
+
+    @Override
+    public Long visitNegateExpr(Expr.Negate expr) {
+      return 1 + walk(expr.right);
+    }
+
+    @Override
+    public Long visitSetExpr(Expr.Set expr) {
+      return 1 + walk(expr.object) + walk(expr.value);
+    }
+
+    @Override
+    public Long visitSuperExpr(Expr.Super expr) {
+      return 1L;
+    }
+
+    @Override
+    public Long visitThisExpr(Expr.This expr) {
+      return 1L;
+    }
+
+    @Override
+    public Long visitUnaryExpr(Expr.Unary expr) {
+      return 1 + walk(expr.right);
+    }
+
+    @Override
+    public Long visitVariableExpr(Expr.Variable expr) {
+      return 1L;
+    }
+
+    @Override
+    public Long visitBlockStmt(Stmt.Block stmt) {
+      return 1 + walk(stmt.statements);
+    }
+
+    @Override
+    public Long visitClassStmt(Stmt.Class stmt) {
+      long nodes = 1 + walk(stmt.superclass);
+      for (Stmt.Function method : stmt.methods) nodes += walk(method);
+      return nodes;
+    }
+
+    @Override
+    public Long visitExpressionStmt(Stmt.Expression stmt) {
+      return 1 + walk(stmt.expression);
+    }
+
+    @Override
+    public Long visitFunctionStmt(Stmt.Function stmt) {
+      return 1 + walk(stmt.body);
+    }
+
+    @Override
+    public Long visitHoistStmt(Stmt.Hoist stmt) {
+      return 1 + walk(stmt.expression);
+    }
+
+    @Override
+    public Long visitIfStmt(Stmt.If stmt) {
+      return 1 + walk(stmt.condition) + walk(stmt.thenBranch) +
+          walk(stmt.elseBranch);
+    }
+
+    @Override
+    public Long visitPrintStmt(Stmt.Print stmt) {
+      return 1 + walk(stmt.expression);
+    }
+
+    @Override
+    public Long visitReturnStmt(Stmt.Return stmt) {
+      return 1 + walk(stmt.value);
+    }
+
+    @Override
+    public Long visitVarStmt(Stmt.Var stmt) {
+      return 1 + walk(stmt.initializer);
+    }
+
+    @Override
+    public Long visitWhileStmt(Stmt.While stmt) {
+      return 1 + walk(stmt.condition) + walk(stmt.body);
+    }
+  }
+
+  private static class SwitchWalker {
+    long walk(List<Stmt> statements) {
+      long nodes = 0;
+      for (Stmt statement : statements) nodes += walk(statement);
+      return nodes;
+    }
+
+    private long walk(Stmt stmt) {
+      if (stmt == null) return 0;
+
+      switch (stmt.kind) {
+        case Stmt.BLOCK:
+          return 1 + walk(((Stmt.Block)stmt).statements);
+        case Stmt.CLASS: {
+          Stmt.Class klass = (Stmt.Class)stmt;
+          long nodes = 1 + walk(klass.superclass);
+          for (Stmt.Function method : klass.methods) nodes += walk(method);
+          return nodes;
+        }
+        case Stmt.EXPRESSION:
+          return 1 + walk(((Stmt.Expression)stmt).expression);
+        case Stmt.FUNCTION:
+          return 1 + walk(((Stmt.Function)stmt).body);
+        case Stmt.HOIST:
+          return 1 + walk(((Stmt.Hoist)stmt).expression);
+        case Stmt.IF: {
+          Stmt.If ifStmt = (Stmt.If)stmt;
+          return 1 + walk(ifStmt.condition) + walk(ifStmt.thenBranch) +
+              walk(ifStmt.elseBranch);
+        }
+        case Stmt.PRINT:
+          return 1 + walk(((Stmt.Print)stmt).expression);
+        case Stmt.RETURN:
+          return 1 + walk(((Stmt.Return)stmt).value);
+        case Stmt.VAR:
+          return 1 + walk(((Stmt.Var)stmt).initializer);
+        case Stmt.WHILE: {
+          Stmt.While whileStmt = (Stmt.While)stmt;
+          return 1 + walk(whileStmt.condition) + walk(whileStmt.body);
+        }
+      }
+      return 0;
+    }
+
+    private long walk(Expr expr) {
+      if (expr == null) return 0;
+
+      switch (expr.kind) {
+        case Expr.ARITHMETIC: {
+          Expr.Arithmetic arithmetic = (Expr.Arithmetic)expr;
+          return 1 + walk(arithmetic.left) + walk(arithmetic.right);
+        }
+        case Expr.ASSIGN:
+          return 1 + walk(((Expr.Assign)expr).value);
+        case Expr.BINARY: {
+          Expr.Binary binary = (Expr.Binary)expr;
+          return 1 + walk(binary.left) + walk(binary.right);
+        }
+        case Expr.CALL: {
+          Expr.Call call = (Expr.Call)expr;
+          long nodes = 1 + walk(call.callee);
+          for (Expr argument : call.arguments) nodes += walk(argument);
+          return nodes;
+        }
+        case Expr.GET:
+          return 1 + walk(((Expr.Get)expr).object);
+        case Expr.GROUPING:
+          return 1 + walk(((Expr.Grouping)expr).expression);
+        case Expr.HOISTED: {
+          Expr.Hoisted hoisted = (Expr.Hoisted)expr;
+          return 1 + walk(hoisted.temp) + walk(hoisted.expression);
+        }
+        case Expr.LOGICAL: {
+          Expr.Logical logical = (Expr.Logical)expr;
+          return 1 + walk(logical.left) + walk(logical.right);
+        }
+        case Expr.SET: {
+          Expr.Set set = (Expr.Set)expr;
+          return 1 + walk(set.object) + walk(set.value);
+        }
+        case Expr.NEGATE:
+          return 1 + walk(((Expr.Negate)expr).right);
+        case Expr.UNARY:
+          return 1 + walk(((Expr.Unary)expr).right);
+        case Expr.LITERAL:
+        case Expr.SUPER:
+        case Expr.THIS:
+        case Expr.VARIABLE:
+          return 1;
+      }
+      return 0;
+    }
+  }
+}
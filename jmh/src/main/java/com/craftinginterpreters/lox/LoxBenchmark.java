@@ -0,0 +1,113 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Times each stage of the front end and the interpreter on the scripts in
+// resources/workloads. Every stage gets the output of the one before it,
+// prepared once up front, so only the stage itself is measured. Run it
+// with "-prof gc" to see how much each one allocates.
+//
+// interpret runs the tree jlox runs, after the optimizer passes, and
+// interpretUnoptimized runs it as the Resolver left it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoxBenchmark {
+  @Param({
+    "fib",
+    "binary_trees",
+    "method_call",
+    "instantiation",
+    "string_equality",
+    "closures",
+    "zoo"
+  })
+  public String workload;
+
+  private Source source;
+  private List<Token> tokens;
+  private List<Stmt> statements;
+  private Interpreter interpreter;
+  // Resolved and optimized for Lox's own interpreter, which the passes use.
+  private List<Stmt> optimized;
+
+  @Setup
+  public void setUp() throws IOException {
+    source = new Source(load(workload));
+    tokens = new Scanner(source).scanTokens();
+    statements = new Parser(tokens).parse();
+    interpreter = new Interpreter();
+    new Resolver(interpreter).resolve(statements);
+    optimized = Lox.compile(source, false, true);
+
+    if (Lox.hadError) {
+      throw new IllegalStateException(workload + " failed to compile.");
+    }
+  }
+
+  // Running a script again just redefines its globals, so one interpreter
+  // serves every iteration. Make sure none of them failed.
+  @TearDown
+  public void tearDown() {
+    if (Lox.hadRuntimeError) {
+      throw new IllegalStateException(workload + " failed to run.");
+    }
+  }
+
+  @Benchmark
+  public List<Token> scan() {
+    return new Scanner(source).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens).parse();
+  }
+
+  // Resolved depths are kept by the interpreter, so each resolve gets a
+  // fresh one to fill.
+  @Benchmark
+  public Interpreter resolve() {
+    Interpreter fresh = new Interpreter();
+    new Resolver(fresh).resolve(statements);
+    return fresh;
+  }
+
+  @Benchmark
+  public void interpret() {
+    Lox.interpreter.interpret(optimized);
+  }
+
+  @Benchmark
+  public void interpretUnoptimized() {
+    interpreter.interpret(statements);
+  }
+
+  private static String load(String workload) throws IOException {
+    String path = "/workloads/" + workload + ".lox";
+    try (InputStream in = LoxBenchmark.class.getResourceAsStream(path)) {
+      if (in == null) throw new IOException("No workload " + path + ".");
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parses a generated program full of long and deeply nested expressions,
+// which the workloads in LoxBenchmark don't have much of. Scans once up
+// front, so only Parser.parse is timed.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+  private List<Token> tokens;
+
+  @Setup
+  public void setUp() {
+    tokens = new Scanner(generate(2000)).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens).parse();
+  }
+
+  private static String generate(int lines) {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      source.append("var v").append(i).append(" = ");
+      for (int j = 0; j < 10; j++) {
+        source.append("a.b(").append(j).append(") * -c + d / 2 >= e and f or ");
+      }
+      source.append("g;\n");
+
+      source.append("print ");
+      for (int j = 0; j < 20; j++) source.append("(");
+      source.append("x");
+      for (int j = 0; j < 20; j++) source.append(" + 1)");
+      source.append(";\n");
+    }
+    return source.toString();
+  }
+}